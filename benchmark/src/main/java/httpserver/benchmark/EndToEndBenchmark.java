@@ -0,0 +1,162 @@
+package httpserver.benchmark;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import httpserver.DispatchMode;
+import httpserver.HttpHeaders;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.HttpServer;
+
+/**
+ * ループバックで{@link HttpServer}へリクエストを送り、レスポンスを受け取るまでを計測する。
+ *
+ * <p>
+ * 各ベンチマークスレッドがkeep-aliveの接続を1本ずつ持つので、
+ * 接続数はJMHの-tオプションで変える(例: -t 1 / -t 16 / -t 64)。
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    private static final int PORT = Integer.getInteger("httpserver.benchmark.port", 18081);
+
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        @Param({ "inline", "bounded" })
+        public String dispatch;
+
+        HttpServer server;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            final HttpServer.Builder builder = HttpServer.builder(Server::echo)
+                    .host("127.0.0.1").port(PORT);
+            if (dispatch.equals("bounded")) {
+                builder.dispatchMode(DispatchMode.bounded(
+                        Runtime.getRuntime().availableProcessors(), 1024));
+            }
+            server = builder.build();
+            server.start();
+            Thread.sleep(200);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            server.stop();
+        }
+
+        static HttpResponse echo(final HttpRequest request) {
+            final HttpHeaders headers = new HttpHeaders();
+            headers.add(HttpHeaders.CONTENT_TYPE, "text/plain; charset=UTF-8");
+            final ByteBuffer entity = ByteBuffer
+                    .wrap(request.requestTarget.getBytes(StandardCharsets.UTF_8));
+            return new HttpResponse(200, "OK", headers, entity);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+
+        private final byte[] request = Requests.smallGet("/hello");
+        private final byte[] buf = new byte[8192];
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+
+        @Setup(Level.Trial)
+        public void connect(final Server server) throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress("127.0.0.1", PORT));
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        int exchange() throws IOException {
+            out.write(request);
+            out.flush();
+            return readResponse();
+        }
+
+        private int readResponse() throws IOException {
+            int length = 0;
+            int headEnd = -1;
+            while (headEnd < 0) {
+                final int n = in.read(buf, length, buf.length - length);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                length += n;
+                headEnd = indexOfHeadEnd(length);
+            }
+            final int contentLength = contentLength(headEnd);
+            int remaining = headEnd + contentLength - length;
+            while (remaining > 0) {
+                final int n = in.read(buf, 0, Math.min(buf.length, remaining));
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                remaining -= n;
+            }
+            return contentLength;
+        }
+
+        private int indexOfHeadEnd(final int length) {
+            for (int i = 3; i < length; i++) {
+                if (buf[i - 3] == '\r' && buf[i - 2] == '\n' && buf[i - 1] == '\r'
+                        && buf[i] == '\n') {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        private int contentLength(final int headEnd) {
+            final String head = new String(buf, 0, headEnd, StandardCharsets.US_ASCII);
+            for (final String line : head.split("\r\n")) {
+                final int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).equalsIgnoreCase("Content-Length")) {
+                    return Integer.parseInt(line.substring(colon + 1).trim());
+                }
+            }
+            return 0;
+        }
+    }
+
+    @Benchmark
+    public int get(final Connection connection) throws IOException {
+        return connection.exchange();
+    }
+}
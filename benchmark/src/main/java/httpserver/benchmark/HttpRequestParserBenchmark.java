@@ -0,0 +1,57 @@
+package httpserver.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import httpserver.HttpRequest;
+import httpserver.HttpRequestParser;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpRequestParserBenchmark {
+
+    @Param({ "smallGet", "manyHeaders", "largePost" })
+    public String shape;
+
+    @Param({ "0", "16" })
+    public int fragmentSize;
+
+    private byte[] request;
+    private HttpRequestParser parser;
+
+    @Setup
+    public void setUp() {
+        request = Requests.of(shape);
+        parser = new HttpRequestParser();
+    }
+
+    @Benchmark
+    public HttpRequest parse() {
+        parser.reset();
+        if (fragmentSize == 0) {
+            parser.parse(ByteBuffer.wrap(request));
+        } else {
+            for (int offset = 0; offset < request.length; offset += fragmentSize) {
+                final int length = Math.min(fragmentSize, request.length - offset);
+                parser.parse(ByteBuffer.wrap(request, offset, length));
+            }
+        }
+        return parser.build();
+    }
+}
@@ -0,0 +1,61 @@
+package httpserver.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import httpserver.HeaderBlock;
+import httpserver.HttpHeaders;
+import httpserver.HttpResponse;
+import httpserver.HttpResponseFormatter;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpResponseFormatterBenchmark {
+
+    @Param({ "0", "128", "4096", "65536" })
+    public int bodySize;
+
+    private HttpResponse response;
+    private HttpResponse precomputed;
+
+    @Setup
+    public void setUp() {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaders.CONTENT_TYPE, "application/json");
+        headers.add(HttpHeaders.CACHE_CONTROL, "no-cache");
+        response = new HttpResponse(200, "OK", headers, ByteBuffer.allocate(bodySize));
+        precomputed = new HttpResponse(200, "OK", HeaderBlock.of(headers),
+                ByteBuffer.allocate(bodySize));
+    }
+
+    @Benchmark
+    public ByteBuffer format() {
+        return new HttpResponseFormatter().format(response);
+    }
+
+    @Benchmark
+    public ByteBuffer formatHead() {
+        return new HttpResponseFormatter().formatHead(response);
+    }
+
+    @Benchmark
+    public ByteBuffer formatHeadWithHeaderBlock() {
+        return new HttpResponseFormatter().formatHead(precomputed);
+    }
+}
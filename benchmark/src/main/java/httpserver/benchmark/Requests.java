@@ -0,0 +1,73 @@
+package httpserver.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+final class Requests {
+
+    private Requests() {
+    }
+
+    static byte[] of(final String shape) {
+        switch (shape) {
+        case "smallGet":
+            return smallGet("/");
+        case "manyHeaders":
+            return manyHeaders();
+        case "largePost":
+            return largePost(64 * 1024);
+        default:
+            throw new IllegalArgumentException(shape);
+        }
+    }
+
+    static byte[] smallGet(final String requestTarget) {
+        final StringBuilder buf = new StringBuilder();
+        buf.append("GET ").append(requestTarget).append(" HTTP/1.1\r\n");
+        buf.append("Host: localhost:8080\r\n");
+        buf.append("User-Agent: curl/7.43.0\r\n");
+        buf.append("Accept: */*\r\n");
+        buf.append("\r\n");
+        return buf.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static byte[] manyHeaders() {
+        final StringBuilder buf = new StringBuilder();
+        buf.append("GET /api/v1/items?page=2&size=50 HTTP/1.1\r\n");
+        buf.append("Host: example.com\r\n");
+        buf.append("User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36\r\n");
+        buf.append("Accept: text/html,application/xhtml+xml,application/xml;q=0.9\r\n");
+        buf.append("Accept-Encoding: gzip, deflate, br\r\n");
+        buf.append("Accept-Language: ja,en-US;q=0.9,en;q=0.8\r\n");
+        buf.append("Cache-Control: max-age=0\r\n");
+        buf.append("Connection: keep-alive\r\n");
+        buf.append("Cookie: session=0123456789abcdef; theme=dark; lang=ja\r\n");
+        buf.append("If-None-Match: \"33a64df551425fcc55e4d42a148795d9f25f89d4\"\r\n");
+        buf.append("If-Modified-Since: Wed, 21 Oct 2015 07:28:00 GMT\r\n");
+        buf.append("Referer: https://example.com/api/v1/items?page=1&size=50\r\n");
+        buf.append("Origin: https://example.com\r\n");
+        buf.append("Pragma: no-cache\r\n");
+        buf.append("Upgrade-Insecure-Requests: 1\r\n");
+        buf.append("X-Forwarded-For: 203.0.113.195, 70.41.3.18, 150.172.238.178\r\n");
+        buf.append("X-Forwarded-Proto: https\r\n");
+        buf.append("X-Request-Id: f058ebd6-02f7-4d3f-942e-904344e8cde5\r\n");
+        buf.append("Sec-Fetch-Dest: document\r\n");
+        buf.append("Sec-Fetch-Mode: navigate\r\n");
+        buf.append("Sec-Fetch-Site: same-origin\r\n");
+        buf.append("\r\n");
+        return buf.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static byte[] largePost(final int size) {
+        final StringBuilder buf = new StringBuilder();
+        buf.append("POST /upload HTTP/1.1\r\n");
+        buf.append("Host: localhost:8080\r\n");
+        buf.append("Content-Type: application/octet-stream\r\n");
+        buf.append("Content-Length: ").append(size).append("\r\n");
+        buf.append("\r\n");
+        final byte[] head = buf.toString().getBytes(StandardCharsets.US_ASCII);
+        final byte[] request = Arrays.copyOf(head, head.length + size);
+        Arrays.fill(request, head.length, request.length, (byte) 'x');
+        return request;
+    }
+}
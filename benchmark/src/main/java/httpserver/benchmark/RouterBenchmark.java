@@ -0,0 +1,63 @@
+package httpserver.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import httpserver.HttpHandler;
+import httpserver.HttpHeaders;
+import httpserver.HttpRequest;
+import httpserver.HttpResponse;
+import httpserver.Router;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark {
+
+    private Router router;
+    private HttpRequest staticRequest;
+    private HttpRequest paramRequest;
+
+    @Setup
+    public void setUp() {
+        final HttpResponse response = new HttpResponse(200, "OK", new HttpHeaders(),
+                ByteBuffer.allocate(0));
+        final HttpHandler handler = request -> response;
+        router = new Router();
+        for (int i = 0; i < 100; i++) {
+            router.get("/api/v1/resource" + i, handler);
+            router.get("/api/v1/resource" + i + "/{id}", handler);
+            router.post("/api/v1/resource" + i + "/{id}/items", handler);
+        }
+        staticRequest = request("/api/v1/resource99");
+        paramRequest = request("/api/v1/resource99/12345");
+    }
+
+    private static HttpRequest request(final String target) {
+        return new HttpRequest("GET", target, "HTTP/1.1", new HttpHeaders(), -1, null);
+    }
+
+    @Benchmark
+    public HttpResponse staticRoute() throws Exception {
+        return router.handle(staticRequest);
+    }
+
+    @Benchmark
+    public HttpResponse paramRoute() throws Exception {
+        return router.handle(paramRequest);
+    }
+}
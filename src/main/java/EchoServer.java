@@ -1,9 +1,7 @@
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.channels.Channels;
 
+import httpserver.HttpHeaders;
 import httpserver.HttpRequest;
 import httpserver.HttpResponse;
 import httpserver.HttpServer;
@@ -20,14 +18,13 @@ public class EchoServer {
     static HttpResponse handle(final HttpRequest request) throws Exception {
         final int statusCode = 200;
         final String reasonPhrase = "OK";
-        final Map<String, List<String>> headers = new HashMap<>();
-        headers.computeIfAbsent("Content-Type", key -> new ArrayList<>())
-                .add("text/plain; charset=UTF-8");
+        final HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaders.CONTENT_TYPE, "text/plain; charset=UTF-8");
         String s;
         if (request.method.equals("GET")) {
             s = request.requestTarget;
         } else {
-            s = new String(request.entity.array());
+            s = new String(Channels.newInputStream(request.body).readAllBytes());
         }
         final ByteBuffer entity = ByteBuffer.wrap(s.getBytes());
         return new HttpResponse(statusCode, reasonPhrase, headers, entity);
@@ -0,0 +1,25 @@
+package httpserver;
+
+import java.util.Objects;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * レスポンスを非同期に返すハンドラー。
+ *
+ * <p>
+ * 他のサービスを呼び出す間スレッドを止めないように、完了していないCompletionStageを返してよい。
+ * CompletionStageはどのスレッドで完了してもよく、レスポンスは接続を受け持つWorkerのキューを通して書き込まれる。
+ * {@link HttpServer.Builder#requestTimeout(java.time.Duration)}までに完了しなければ504を返す。
+ */
+@FunctionalInterface
+public interface AsyncHttpHandler {
+
+    CompletionStage<HttpResponse> handleAsync(HttpRequest request) throws Exception;
+
+    /**
+     * 同期的なハンドラーを、呼び出したスレッドで実行して完了済みのCompletionStageを返すハンドラーにする。
+     */
+    static AsyncHttpHandler of(final HttpHandler handler) {
+        return new SynchronousHttpHandler(Objects.requireNonNull(handler));
+    }
+}
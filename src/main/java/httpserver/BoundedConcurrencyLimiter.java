@@ -0,0 +1,164 @@
+package httpserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 上限を超えない範囲で処理中の数を数える{@link ConcurrencyLimiter}。
+ * サブクラスは計測値から上限を調整する。
+ */
+class BoundedConcurrencyLimiter implements ConcurrencyLimiter {
+
+    static final ConcurrencyLimiter UNLIMITED = new ConcurrencyLimiter() {
+
+        @Override
+        public boolean tryAcquire() {
+            return true;
+        }
+
+        @Override
+        public void onComplete(final long latencyNanos) {
+        }
+
+        @Override
+        public void onDropped() {
+        }
+
+        @Override
+        public int limit() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public int inFlight() {
+            return 0;
+        }
+    };
+
+    final int min;
+    final int max;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    volatile int limit;
+
+    BoundedConcurrencyLimiter(final int min, final int max, final int initialLimit) {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("invalid limits: min=" + min + ", max=" + max);
+        }
+        this.min = min;
+        this.max = max;
+        this.limit = initialLimit;
+    }
+
+    @Override
+    public boolean tryAcquire() {
+        int n;
+        do {
+            n = inFlight.get();
+            if (n >= limit) {
+                return false;
+            }
+        } while (inFlight.compareAndSet(n, n + 1) == false);
+        return true;
+    }
+
+    @Override
+    public void onComplete(final long latencyNanos) {
+        final int n = inFlight.getAndDecrement();
+        sample(latencyNanos, n);
+    }
+
+    @Override
+    public void onDropped() {
+        inFlight.decrementAndGet();
+        dropped();
+    }
+
+    @Override
+    public int limit() {
+        return limit;
+    }
+
+    @Override
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * inFlightは完了したリクエストを含む完了直前の処理中の数。
+     */
+    void sample(final long latencyNanos, final int inFlight) {
+    }
+
+    void dropped() {
+    }
+
+    static final class Aimd extends BoundedConcurrencyLimiter {
+
+        private final long latencyThresholdNanos;
+
+        Aimd(final int min, final int max, final long latencyThresholdNanos) {
+            super(min, max, min);
+            this.latencyThresholdNanos = latencyThresholdNanos;
+        }
+
+        @Override
+        synchronized void sample(final long latencyNanos, final int inFlight) {
+            if (latencyNanos > latencyThresholdNanos) {
+                dropped();
+            } else if (inFlight * 2 >= limit) {
+                limit = Math.min(max, limit + 1);
+            }
+        }
+
+        @Override
+        synchronized void dropped() {
+            limit = Math.max(min, (int) (limit * 0.9));
+        }
+    }
+
+    static final class Gradient extends BoundedConcurrencyLimiter {
+
+        private static final double LONG_WINDOW = 600;
+        private static final double TOLERANCE = 1.5;
+        private static final double SMOOTHING = 0.2;
+
+        private double longLatency;
+        private double estimate;
+
+        Gradient(final int min, final int max) {
+            super(min, max, min);
+            this.estimate = min;
+        }
+
+        @Override
+        synchronized void sample(final long latencyNanos, final int inFlight) {
+            final double latency = Math.max(1, latencyNanos);
+            if (longLatency == 0) {
+                longLatency = latency;
+            } else {
+                longLatency += (latency - longLatency) / LONG_WINDOW;
+            }
+            // 負荷が下がった後は長期の平均が高いままになるので、早めに追従させる
+            if (longLatency / latency > 2) {
+                longLatency *= 0.95;
+            }
+            // 上限まで使っていないときは計測値が上限の妥当性を表さない
+            if (inFlight * 2 < limit) {
+                return;
+            }
+            final double gradient = Math.max(0.5,
+                    Math.min(1.0, TOLERANCE * longLatency / latency));
+            final double next = estimate * gradient + Math.sqrt(estimate);
+            update(estimate * (1 - SMOOTHING) + next * SMOOTHING);
+        }
+
+        @Override
+        synchronized void dropped() {
+            update(estimate * 0.9);
+        }
+
+        private void update(final double value) {
+            estimate = Math.max(min, Math.min(max, value));
+            limit = (int) estimate;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package httpserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Workerごとに持つダイレクトバッファのプール。
+ *
+ * <p>
+ * Workerのスレッドからだけ使われるため同期は行わない。
+ * 統計値は他のスレッドから読むこともできるが、その場合は近似値になる。
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+    private long allocated;
+    private long acquired;
+    private long released;
+    private long discarded;
+
+    BufferPool(final int bufferSize, final int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    ByteBuffer acquire() {
+        acquired++;
+        final ByteBuffer buf = pool.pollLast();
+        if (buf != null) {
+            return buf;
+        }
+        allocated++;
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    void release(final ByteBuffer buf) {
+        released++;
+        if (pool.size() < maxPooled) {
+            buf.clear();
+            pool.addLast(buf);
+        } else {
+            discarded++;
+        }
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public int maxPooled() {
+        return maxPooled;
+    }
+
+    /**
+     * 現在プールに戻っているバッファの数。
+     */
+    public int pooled() {
+        return pool.size();
+    }
+
+    /**
+     * 新たに確保したバッファの数。
+     */
+    public long allocated() {
+        return allocated;
+    }
+
+    public long acquired() {
+        return acquired;
+    }
+
+    public long released() {
+        return released;
+    }
+
+    /**
+     * プールが一杯で捨てたバッファの数。
+     */
+    public long discarded() {
+        return discarded;
+    }
+
+    /**
+     * 貸し出し中のバッファの数。
+     */
+    public long inUse() {
+        return acquired - released;
+    }
+}
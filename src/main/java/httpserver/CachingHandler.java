@@ -0,0 +1,392 @@
+package httpserver;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * GETのレスポンスをメモリに保持し、同じリクエストにはハンドラーを呼ばずに返すハンドラー。
+ *
+ * <p>
+ * キーはHostとリクエストターゲットと、指定したリクエストヘッダーの値。
+ * レスポンスのヘッダーは{@link HeaderBlock}へ、エンティティは読み取り専用のバッファーへ変換して保持するため、
+ * 保持しているレスポンスを返すときはヘッダーの変換もエンティティのコピーも行わない。
+ * ETagがなければエンティティから作り、If-None-Matchが一致すれば304を返す。
+ *
+ * <p>
+ * 有効期間はレスポンスのCache-Controlのs-maxageかmax-ageに従い、どちらもなければデフォルトの値を使う。
+ * no-store、no-cache、privateのいずれかを含むレスポンスと、Set-Cookieを含むレスポンス、
+ * {@link ResponseBody}で送るレスポンスは保持しない。
+ * Authorizationを含むリクエストには、publicかs-maxageを含むレスポンスだけを保持して返す。
+ *
+ * <p>
+ * 保持するバイト数の上限を超えるとCLOCK方式で最近使われていないものから捨てる。
+ * 参照はロックを取らずに行い、追加と削除だけを同期する。
+ */
+public class CachingHandler implements HttpHandler {
+
+    private static final int[] CACHEABLE_STATUS_CODES = { 200, 203, 300, 301, 404, 410 };
+    private static final String[] NOT_MODIFIED_HEADERS = { HttpHeaders.CACHE_CONTROL,
+            HttpHeaders.ETAG, HttpHeaders.LAST_MODIFIED, HttpHeaders.VARY, "Content-Location",
+            "Expires" };
+    /**
+     * キーや配列などエンティティとヘッダー以外に使うおおよそのバイト数。
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final HttpHandler handler;
+    private final long maxSize;
+    private final long defaultTtlNanos;
+    private final String[] keyHeaders;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ArrayDeque<Entry> clock = new ArrayDeque<>();
+    private long size;
+    private int stale;
+
+    private CachingHandler(final Builder builder) {
+        this.handler = builder.handler;
+        this.maxSize = builder.maxSize;
+        this.defaultTtlNanos = builder.defaultTtl.toNanos();
+        this.keyHeaders = builder.keyHeaders;
+    }
+
+    public static Builder builder(final HttpHandler handler) {
+        return new Builder(handler);
+    }
+
+    @Override
+    public HttpResponse handle(final HttpRequest request) throws Exception {
+        if (request.method.equals("GET") == false) {
+            return handler.handle(request);
+        }
+        final String key = key(request);
+        final long now = System.nanoTime();
+        final boolean authorized = request.headers.contains(HttpHeaders.AUTHORIZATION);
+        if (request.headers.containsToken(HttpHeaders.CACHE_CONTROL, "no-cache") == false) {
+            final Entry entry = entries.get(key);
+            // 認証されたリクエストへ他の利用者向けのレスポンスを返さない
+            if (entry != null && (authorized == false || entry.shared)) {
+                if (now - entry.expires < 0) {
+                    if (entry.referenced == false) {
+                        entry.referenced = true;
+                    }
+                    return entry.response(request);
+                }
+                invalidate(entry);
+            }
+        }
+        final HttpResponse response = handler.handle(request);
+        final Entry entry = createEntry(key, response, now, authorized);
+        if (entry == null) {
+            return response;
+        }
+        store(entry);
+        return entry.response(request);
+    }
+
+    /**
+     * 保持しているレスポンスのバイト数のおおよその合計。
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * 保持しているレスポンスを全て捨てる。
+     */
+    public synchronized void clear() {
+        for (final Entry entry : clock) {
+            entry.removed = true;
+        }
+        clock.clear();
+        entries.clear();
+        size = 0;
+        stale = 0;
+    }
+
+    private String key(final HttpRequest request) {
+        final String host = request.headers.get(HttpHeaders.HOST);
+        final StringBuilder key = new StringBuilder();
+        if (host != null) {
+            key.append(host.toLowerCase());
+        }
+        key.append('\n').append(request.requestTarget);
+        for (final String name : keyHeaders) {
+            key.append('\n');
+            final String value = request.headers.get(name);
+            if (value != null) {
+                key.append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    private Entry createEntry(final String key, final HttpResponse response, final long now,
+            final boolean authorized) {
+        if (response.entity == null || response.body != null
+                || Arrays.stream(CACHEABLE_STATUS_CODES)
+                        .noneMatch(code -> code == response.statusCode)) {
+            return null;
+        }
+        final HttpHeaders source = new HttpHeaders();
+        if (response.headerBlock != null) {
+            final HttpHeaders block = response.headerBlock.headers();
+            for (int i = 0; i < block.size(); i++) {
+                source.add(block.name(i), block.value(i));
+            }
+        }
+        for (int i = 0; i < response.headers.size(); i++) {
+            source.add(response.headers.name(i), response.headers.value(i));
+        }
+        if (source.contains("Set-Cookie") || source.contains(HttpHeaders.CONNECTION)
+                || source.containsToken(HttpHeaders.CACHE_CONTROL, "no-store")
+                || source.containsToken(HttpHeaders.CACHE_CONTROL, "no-cache")
+                || source.containsToken(HttpHeaders.CACHE_CONTROL, "private")
+                || isKeyedByVary(source) == false) {
+            return null;
+        }
+        final boolean shared = source.containsToken(HttpHeaders.CACHE_CONTROL, "public")
+                || hasSharedMaxAge(source);
+        if (authorized && shared == false) {
+            return null;
+        }
+        final long ttl = ttlNanos(source);
+        if (ttl <= 0) {
+            return null;
+        }
+
+        final ByteBuffer entity = ByteBuffer.allocate(response.entity.remaining());
+        entity.put(response.entity.duplicate()).flip();
+        final HttpHeaders headers = new HttpHeaders();
+        final HttpHeaders notModified = new HttpHeaders();
+        for (int i = 0; i < source.size(); i++) {
+            final String name = source.name(i);
+            if (name.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH)
+                    || name.equalsIgnoreCase(HttpHeaders.TRANSFER_ENCODING)
+                    || name.equalsIgnoreCase(HttpHeaders.DATE)) {
+                continue;
+            }
+            headers.add(name, source.value(i));
+            for (final String n : NOT_MODIFIED_HEADERS) {
+                if (n.equalsIgnoreCase(name)) {
+                    notModified.add(name, source.value(i));
+                }
+            }
+        }
+        String etag = source.get(HttpHeaders.ETAG);
+        if (etag == null) {
+            final CRC32 crc = new CRC32();
+            crc.update(entity.duplicate());
+            etag = "\"" + Integer.toHexString(entity.remaining()) + "-"
+                    + Long.toHexString(crc.getValue()) + "\"";
+            headers.add(HttpHeaders.ETAG, etag);
+            notModified.add(HttpHeaders.ETAG, etag);
+        }
+        return new Entry(key, response.statusCode, response.reasonPhrase,
+                HeaderBlock.of(headers), HeaderBlock.of(notModified), entity.asReadOnlyBuffer(),
+                etag, now + ttl, shared);
+    }
+
+    private static boolean hasSharedMaxAge(final HttpHeaders headers) {
+        for (final String value : headers.getAll(HttpHeaders.CACHE_CONTROL)) {
+            for (final String directive : value.split(",")) {
+                if (directive.trim().regionMatches(true, 0, "s-maxage=", 0, 9)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isKeyedByVary(final HttpHeaders headers) {
+        for (final String value : headers.getAll(HttpHeaders.VARY)) {
+            for (final String token : value.split(",")) {
+                final String name = token.trim();
+                if (name.isEmpty() == false && Arrays.stream(keyHeaders)
+                        .noneMatch(keyHeader -> keyHeader.equalsIgnoreCase(name))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private long ttlNanos(final HttpHeaders headers) {
+        long maxAge = -1;
+        for (final String value : headers.getAll(HttpHeaders.CACHE_CONTROL)) {
+            for (final String directive : value.split(",")) {
+                final String d = directive.trim().toLowerCase();
+                try {
+                    if (d.startsWith("s-maxage=")) {
+                        return Duration.ofSeconds(Long.parseLong(d.substring(9))).toNanos();
+                    }
+                    if (d.startsWith("max-age=")) {
+                        maxAge = Long.parseLong(d.substring(8));
+                    }
+                } catch (final NumberFormatException | ArithmeticException e) {
+                    return 0;
+                }
+            }
+        }
+        return maxAge >= 0 ? Duration.ofSeconds(maxAge).toNanos() : defaultTtlNanos;
+    }
+
+    private synchronized void store(final Entry entry) {
+        if (entry.size > maxSize) {
+            return;
+        }
+        final Entry old = entries.put(entry.key, entry);
+        if (old != null) {
+            remove(old);
+        }
+        clock.add(entry);
+        size += entry.size;
+        while (size > maxSize) {
+            final Entry e = clock.poll();
+            if (e.removed) {
+                stale--;
+                continue;
+            }
+            if (e.referenced) {
+                e.referenced = false;
+                clock.add(e);
+                continue;
+            }
+            entries.remove(e.key, e);
+            e.removed = true;
+            size -= e.size;
+        }
+        // 置き換えや期限切れで捨てたものが溜まったら取り除く
+        if (stale > clock.size() / 2) {
+            clock.removeIf(e -> e.removed);
+            stale = 0;
+        }
+    }
+
+    private synchronized void invalidate(final Entry entry) {
+        if (entries.remove(entry.key, entry)) {
+            remove(entry);
+        }
+    }
+
+    private void remove(final Entry entry) {
+        if (entry.removed == false) {
+            entry.removed = true;
+            size -= entry.size;
+            stale++;
+        }
+    }
+
+    private static final class Entry {
+
+        final String key;
+        final int statusCode;
+        final String reasonPhrase;
+        final HeaderBlock headerBlock;
+        final HeaderBlock notModifiedBlock;
+        final ByteBuffer entity;
+        final String etag;
+        final long expires;
+        final long size;
+        /**
+         * publicかs-maxageを含み、Authorizationを含むリクエストにも返せる。
+         */
+        final boolean shared;
+        volatile boolean referenced;
+        /**
+         * CachingHandlerのロックを取って読み書きする。
+         */
+        boolean removed;
+
+        Entry(final String key, final int statusCode, final String reasonPhrase,
+                final HeaderBlock headerBlock, final HeaderBlock notModifiedBlock,
+                final ByteBuffer entity, final String etag, final long expires,
+                final boolean shared) {
+            this.key = key;
+            this.statusCode = statusCode;
+            this.reasonPhrase = reasonPhrase;
+            this.headerBlock = headerBlock;
+            this.notModifiedBlock = notModifiedBlock;
+            this.entity = entity;
+            this.etag = etag;
+            this.expires = expires;
+            this.shared = shared;
+            this.size = ENTRY_OVERHEAD + key.length() * 2L + entity.capacity()
+                    + headerBlock.bytes().length + notModifiedBlock.bytes().length;
+        }
+
+        HttpResponse response(final HttpRequest request) {
+            if (statusCode == 200 && matches(request.headers.get(HttpHeaders.IF_NONE_MATCH))) {
+                return new HttpResponse(304, "Not Modified", notModifiedBlock, (ByteBuffer) null);
+            }
+            return new HttpResponse(statusCode, reasonPhrase, headerBlock, entity);
+        }
+
+        /**
+         * If-None-Matchの弱い比較。
+         */
+        private boolean matches(final String ifNoneMatch) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+            final String tag = opaqueTag(etag);
+            for (final String candidate : ifNoneMatch.split(",")) {
+                final String c = candidate.trim();
+                if (c.equals("*") || opaqueTag(c).equals(tag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String opaqueTag(final String etag) {
+            return etag.startsWith("W/") ? etag.substring(2) : etag;
+        }
+    }
+
+    public static class Builder {
+
+        private final HttpHandler handler;
+        private long maxSize = 64 * 1024 * 1024;
+        private Duration defaultTtl = Duration.ZERO;
+        private String[] keyHeaders = {};
+
+        private Builder(final HttpHandler handler) {
+            this.handler = Objects.requireNonNull(handler);
+        }
+
+        /**
+         * 保持するレスポンスのおおよその最大バイト数。デフォルトは64MiB。
+         */
+        public Builder maxSize(final long maxSize) {
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        /**
+         * Cache-Controlで有効期間が指定されていないレスポンスの有効期間。
+         * デフォルトは0で、指定されていないレスポンスは保持しない。
+         */
+        public Builder defaultTtl(final Duration defaultTtl) {
+            this.defaultTtl = Objects.requireNonNull(defaultTtl);
+            return this;
+        }
+
+        /**
+         * キーに含めるリクエストヘッダー。
+         * レスポンスのVaryにここで指定していないヘッダーが含まれている場合は保持しない。
+         */
+        public Builder keyHeaders(final String... keyHeaders) {
+            this.keyHeaders = keyHeaders.clone();
+            return this;
+        }
+
+        public CachingHandler build() {
+            return new CachingHandler(this);
+        }
+    }
+}
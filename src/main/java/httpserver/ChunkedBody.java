@@ -0,0 +1,214 @@
+package httpserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * 長さが分からないレスポンスボディをchunked transfer-encodingで送る。
+ *
+ * <p>
+ * ハンドラーはこのボディを持つHttpResponseを返した後、任意のスレッドから
+ * {@link #write(ByteBuffer)}でデータを渡し、最後に{@link #close()}を呼び出す。
+ * レスポンスヘッダーはボディが揃うのを待たずに送られる。
+ *
+ * <p>
+ * クライアントが受け取るより速く書き込むとデータが溜まり続けるので、
+ * {@link #isWritable()}がfalseの間は書き込みを控え、
+ * {@link #setWritabilityListener(Runnable)}で送り終えるのを待つ。
+ * 溜まったバイト数の目安は{@link HttpServer.Builder#writeBufferWaterMarks(int, int)}で設定する。
+ */
+public class ChunkedBody extends ResponseBody {
+
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final Deque<ByteBuffer> chunks = new ArrayDeque<>();
+    private final ByteBuffer[] current = new ByteBuffer[3];
+    private int lowWaterMark = 32 * 1024;
+    private int highWaterMark = 64 * 1024;
+    /**
+     * 書き込まれて、まだ送り終えていないデータのバイト数。
+     */
+    private long buffered;
+    private int currentSize;
+    private boolean unwritable;
+    private Runnable writabilityListener;
+    private boolean chunked = true;
+    private boolean closed;
+    private boolean aborted;
+    private boolean lastChunkQueued;
+    private boolean waiting;
+    private Runnable readyListener;
+
+    @Override
+    public long contentLength() {
+        return -1;
+    }
+
+    /**
+     * dataの残りを1つのチャンクとして送る。dataの内容はコピーされる。
+     */
+    public void write(final ByteBuffer data) throws IOException {
+        if (data.hasRemaining() == false) {
+            return;
+        }
+        final ByteBuffer chunk = ByteBuffer.allocate(data.remaining());
+        chunk.put(data);
+        chunk.flip();
+        final Runnable listener;
+        synchronized (this) {
+            if (aborted) {
+                throw new ClosedChannelException();
+            }
+            if (closed) {
+                throw new IllegalStateException("already closed");
+            }
+            chunks.add(chunk);
+            buffered += chunk.remaining();
+            if (buffered > highWaterMark) {
+                unwritable = true;
+            }
+            listener = takeReadyListener();
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * ボディの終わりを送る。
+     */
+    public void close() {
+        final Runnable listener;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            listener = takeReadyListener();
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * 溜まっているデータがhighを超えるとfalseになり、lowまで送り終えるとtrueに戻る。
+     */
+    public synchronized boolean isWritable() {
+        return unwritable == false;
+    }
+
+    /**
+     * {@link #isWritable()}がtrueに戻ったときに呼び出されるリスナーを設定する。
+     * リスナーはセレクタースレッドで呼び出されるので、ブロックしてはいけない。
+     */
+    public synchronized void setWritabilityListener(final Runnable listener) {
+        this.writabilityListener = listener;
+    }
+
+    @Override
+    Progress writeTo(final GatheringByteChannel channel) throws IOException {
+        final Progress progress;
+        Runnable listener = null;
+        synchronized (this) {
+            progress = writeChunks(channel);
+            if (unwritable && buffered <= lowWaterMark) {
+                unwritable = false;
+                listener = writabilityListener;
+            }
+        }
+        if (listener != null) {
+            listener.run();
+        }
+        return progress;
+    }
+
+    private Progress writeChunks(final GatheringByteChannel channel) throws IOException {
+        while (true) {
+            if (current[0] == null || current[2].hasRemaining() == false) {
+                buffered -= currentSize;
+                currentSize = 0;
+                final ByteBuffer chunk = chunks.poll();
+                if (chunk != null) {
+                    currentSize = chunk.remaining();
+                }
+                if (chunk != null && chunked == false) {
+                    current[0] = EMPTY;
+                    current[1] = EMPTY;
+                    current[2] = chunk;
+                } else if (chunk != null) {
+                    current[0] = ByteBuffer.wrap(Integer.toHexString(chunk.remaining())
+                            .concat("\r\n").getBytes(StandardCharsets.US_ASCII));
+                    current[1] = chunk;
+                    current[2] = ByteBuffer.wrap(CRLF);
+                } else if (closed && chunked == false) {
+                    return Progress.DONE;
+                } else if (closed && lastChunkQueued == false) {
+                    current[0] = EMPTY;
+                    current[1] = EMPTY;
+                    current[2] = ByteBuffer.wrap(LAST_CHUNK);
+                    lastChunkQueued = true;
+                } else if (lastChunkQueued) {
+                    return Progress.DONE;
+                } else {
+                    waiting = true;
+                    return Progress.WAITING;
+                }
+            }
+            written += channel.write(current);
+            if (current[2].hasRemaining()) {
+                return Progress.PARTIAL;
+            }
+        }
+    }
+
+    @Override
+    synchronized void setReadyListener(final Runnable listener) {
+        this.readyListener = listener;
+    }
+
+    @Override
+    synchronized void setWriteBufferWaterMarks(final int low, final int high) {
+        lowWaterMark = low;
+        highWaterMark = high;
+        if (buffered > high) {
+            unwritable = true;
+        }
+    }
+
+    @Override
+    synchronized void disableChunkedEncoding() {
+        chunked = false;
+    }
+
+    @Override
+    void abort() {
+        final Runnable listener;
+        synchronized (this) {
+            aborted = true;
+            chunks.clear();
+            buffered = 0;
+            // 待っているハンドラーが次のwriteで閉じられたことに気付けるようにする
+            listener = unwritable ? writabilityListener : null;
+            unwritable = false;
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private Runnable takeReadyListener() {
+        if (waiting) {
+            waiting = false;
+            return readyListener;
+        }
+        return null;
+    }
+}
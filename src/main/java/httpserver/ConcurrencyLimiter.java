@@ -0,0 +1,69 @@
+package httpserver;
+
+import java.time.Duration;
+
+/**
+ * 同時に処理するリクエストの数を制限する。
+ *
+ * <p>
+ * ハンドラーを呼び出す前に{@link #tryAcquire()}し、取れなかったリクエストには
+ * ハンドラーを呼ばずに503を返す。取れた場合はハンドラーが戻ったときに
+ * {@link #onComplete(long)}か{@link #onDropped()}のどちらかを一度だけ呼び出す。
+ * I/O Workerとハンドラーを実行するスレッドから並行して呼び出される。
+ */
+public interface ConcurrencyLimiter {
+
+    boolean tryAcquire();
+
+    /**
+     * ハンドラーが戻った。latencyNanosはハンドラーの実行にかかった時間。
+     */
+    void onComplete(long latencyNanos);
+
+    /**
+     * 取得したもののハンドラーを実行できなかった。
+     */
+    void onDropped();
+
+    /**
+     * 現在の上限。
+     */
+    int limit();
+
+    /**
+     * 処理中のリクエストの数。
+     */
+    int inFlight();
+
+    /**
+     * 制限しない。
+     */
+    static ConcurrencyLimiter unlimited() {
+        return BoundedConcurrencyLimiter.UNLIMITED;
+    }
+
+    /**
+     * 固定の上限で制限する。
+     */
+    static ConcurrencyLimiter fixed(final int limit) {
+        return new BoundedConcurrencyLimiter(limit, limit, limit);
+    }
+
+    /**
+     * ハンドラーの実行時間がlatencyThresholdを超えるか実行できなかった場合は上限を1割減らし、
+     * そうでなければ上限の半分以上を使っている間は1ずつ増やす。上限はminからmaxの間で動く。
+     */
+    static ConcurrencyLimiter aimd(final int min, final int max,
+            final Duration latencyThreshold) {
+        return new BoundedConcurrencyLimiter.Aimd(min, max, latencyThreshold.toNanos());
+    }
+
+    /**
+     * 長期の平均の実行時間と直近の実行時間の比で上限を調整する。
+     * 実行時間が延び始めたら、つまりキューが溜まり始めたら上限を下げる。
+     * 閾値を決めておく必要がない。上限はminからmaxの間で動く。
+     */
+    static ConcurrencyLimiter gradient(final int min, final int max) {
+        return new BoundedConcurrencyLimiter.Gradient(min, max);
+    }
+}
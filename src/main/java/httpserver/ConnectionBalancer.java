@@ -0,0 +1,87 @@
+package httpserver;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 受け付けた接続をどのI/O Workerに受け持たせるかを決める。
+ *
+ * <p>
+ * 受け付け専用のスレッドから呼び出される。
+ * SO_REUSEPORTで各Workerが接続を受け付ける場合は振り分けをカーネルが行うため使われない。
+ */
+@FunctionalInterface
+public interface ConnectionBalancer {
+
+    /**
+     * 接続を受け持たせるWorkerのworkersの中でのインデックスを返す。
+     */
+    int select(List<? extends WorkerLoad> workers);
+
+    /**
+     * 負荷に関係なく順番に割り当てる。
+     */
+    static ConnectionBalancer roundRobin() {
+        final AtomicInteger counter = new AtomicInteger();
+        return workers -> (counter.getAndIncrement() & Integer.MAX_VALUE) % workers.size();
+    }
+
+    /**
+     * 接続数が最も少ないWorkerに割り当てる。同数の場合はビジー率の低い方を選ぶ。
+     */
+    static ConnectionBalancer leastConnections() {
+        return workers -> {
+            int selected = 0;
+            for (int i = 1; i < workers.size(); i++) {
+                final WorkerLoad candidate = workers.get(i);
+                final WorkerLoad current = workers.get(selected);
+                final int c = Integer.compare(candidate.connections(), current.connections());
+                if (c < 0 || (c == 0 && candidate.busyRatio() < current.busyRatio())) {
+                    selected = i;
+                }
+            }
+            return selected;
+        };
+    }
+
+    /**
+     * 無作為に選んだ2つのWorkerのうち、接続数にビジー率で重みを付けた負荷の小さい方に割り当てる。
+     * 全Workerを走査せずに偏りを抑えられる。
+     */
+    static ConnectionBalancer powerOfTwoChoices() {
+        return workers -> {
+            final int size = workers.size();
+            if (size == 1) {
+                return 0;
+            }
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            final int a = random.nextInt(size);
+            int b = random.nextInt(size - 1);
+            if (b >= a) {
+                b++;
+            }
+            return load(workers.get(b)) < load(workers.get(a)) ? b : a;
+        };
+    }
+
+    private static double load(final WorkerLoad worker) {
+        return (worker.connections() + 1) * (1 + worker.busyRatio());
+    }
+
+    /**
+     * 振り分けの判断に使うWorkerの負荷。値は他のスレッドから読むため近似値になる。
+     */
+    interface WorkerLoad {
+
+        /**
+         * 受け持っている接続の数。
+         */
+        int connections();
+
+        /**
+         * 直近のイベントループでセレクターの待機以外に費やした時間の割合。0から1の値。
+         */
+        double busyRatio();
+    }
+}
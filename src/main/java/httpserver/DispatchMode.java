@@ -0,0 +1,96 @@
+package httpserver;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HttpHandlerをどのスレッドで実行するかを表す。
+ *
+ * <p>
+ * inline以外のモードではハンドラーはセレクタースレッドの外で実行され、
+ * レスポンスは接続を受け持つWorkerのキューを通して書き込まれる。
+ * キューが溢れてタスクを受け付けられなかった場合は503を返す。
+ */
+public final class DispatchMode {
+
+    private static final DispatchMode INLINE = new DispatchMode(null, false);
+
+    private final Executor executor;
+    private final boolean owned;
+
+    private DispatchMode(final Executor executor, final boolean owned) {
+        this.executor = executor;
+        this.owned = owned;
+    }
+
+    /**
+     * セレクタースレッド上で直接ハンドラーを実行する。
+     */
+    public static DispatchMode inline() {
+        return INLINE;
+    }
+
+    /**
+     * 任意のExecutorでハンドラーを実行する。Executorのライフサイクルは呼び出し側が管理する。
+     */
+    public static DispatchMode executor(final Executor executor) {
+        return new DispatchMode(Objects.requireNonNull(executor), false);
+    }
+
+    /**
+     * 固定数のスレッドと有界キューを持つスレッドプールでハンドラーを実行する。
+     * スレッドプールはサーバーの停止時にシャットダウンされる。
+     */
+    public static DispatchMode bounded(final int threads, final int queueCapacity) {
+        final AtomicInteger counter = new AtomicInteger();
+        final ThreadFactory threadFactory = r -> {
+            final Thread t = new Thread(r, "http-handler-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        final ExecutorService executor = new ThreadPoolExecutor(threads, threads, 0L,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), threadFactory,
+                new ThreadPoolExecutor.AbortPolicy());
+        return new DispatchMode(executor, true);
+    }
+
+    /**
+     * リクエストごとに仮想スレッドを起動してハンドラーを実行する。
+     * 仮想スレッドを持たないJavaで実行している場合はUnsupportedOperationExceptionをスローする。
+     */
+    public static DispatchMode virtualThreadPerRequest() {
+        final ExecutorService executor;
+        try {
+            executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (final NoSuchMethodException | IllegalAccessException e) {
+            throw new UnsupportedOperationException("virtual threads are not available", e);
+        } catch (final InvocationTargetException e) {
+            throw new UnsupportedOperationException("virtual threads are not available",
+                    e.getCause());
+        }
+        return new DispatchMode(executor, true);
+    }
+
+    boolean isInline() {
+        return executor == null;
+    }
+
+    void execute(final Runnable task) {
+        executor.execute(task);
+    }
+
+    void shutdown() {
+        if (owned) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package httpserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ファイルの一部または全体をレスポンスボディとして送る。
+ *
+ * <p>
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * で書き込むため、ファイルの内容がヒープへコピーされることはない。
+ */
+public class FileBody extends ResponseBody {
+
+    private static final Logger logger = Logger.getLogger(FileBody.class.getName());
+
+    private final FileChannel channel;
+    private final long position;
+    private final long count;
+    private long transferred;
+
+    public FileBody(final Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.position = 0;
+        this.count = channel.size();
+    }
+
+    public FileBody(final Path path, final long position, final long count) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.position = position;
+        this.count = count;
+    }
+
+    @Override
+    public long contentLength() {
+        return count;
+    }
+
+    @Override
+    Progress writeTo(final GatheringByteChannel target) throws IOException {
+        while (transferred < count) {
+            final long n = channel.transferTo(position + transferred, count - transferred,
+                    target);
+            if (n <= 0) {
+                if (position + transferred >= channel.size()) {
+                    throw new EOFException("file was truncated while sending");
+                }
+                return Progress.PARTIAL;
+            }
+            transferred += n;
+            written += n;
+        }
+        channel.close();
+        return Progress.DONE;
+    }
+
+    @Override
+    void abort() {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            logger.log(Level.FINE, "exception in close file", e);
+        }
+    }
+}
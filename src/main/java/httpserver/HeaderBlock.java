@@ -0,0 +1,63 @@
+package httpserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * バイト列へ変換済みのヘッダーの並び。
+ *
+ * <p>
+ * 同じヘッダーを返し続けるエンドポイントで一度だけ作っておき、
+ * {@link HttpResponse}へ渡すとレスポンスごとのヘッダーの変換が省ける。
+ * 不変なので複数のスレッドから共有できる。
+ * Content-Length、Transfer-Encoding、Connectionはサーバーが付けるため含められない。
+ */
+public final class HeaderBlock {
+
+    private final byte[] bytes;
+    private final HttpHeaders headers;
+    private final boolean containsServer;
+    private final boolean containsDate;
+
+    private HeaderBlock(final byte[] bytes, final HttpHeaders headers) {
+        this.bytes = bytes;
+        this.headers = headers;
+        this.containsServer = headers.contains(HttpHeaders.SERVER);
+        this.containsDate = headers.contains(HttpHeaders.DATE);
+    }
+
+    public static HeaderBlock of(final HttpHeaders headers) {
+        Objects.requireNonNull(headers);
+        final StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < headers.size(); i++) {
+            final String name = headers.name(i);
+            if (name.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH)
+                    || name.equalsIgnoreCase(HttpHeaders.TRANSFER_ENCODING)
+                    || name.equalsIgnoreCase(HttpHeaders.CONNECTION)) {
+                throw new IllegalArgumentException(name + " cannot be precomputed");
+            }
+            buf.append(name).append(": ").append(headers.value(i)).append("\r\n");
+        }
+        return new HeaderBlock(buf.toString().getBytes(StandardCharsets.ISO_8859_1),
+                headers.copy());
+    }
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * 変換前のヘッダー。サーバーが内容を確かめるために使い、変更してはならない。
+     */
+    HttpHeaders headers() {
+        return headers;
+    }
+
+    boolean containsServer() {
+        return containsServer;
+    }
+
+    boolean containsDate() {
+        return containsDate;
+    }
+}
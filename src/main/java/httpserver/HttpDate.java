@@ -0,0 +1,71 @@
+package httpserver;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * HTTPの日付をIMF-fixdateで扱う。
+ * Dateヘッダーの行は1秒ごとに作り直してキャッシュし、全てのWorkerで共有する。
+ */
+final class HttpDate {
+
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private static volatile Line cached = new Line(Long.MIN_VALUE, null);
+
+    private HttpDate() {
+    }
+
+    /**
+     * Last-Modifiedなどに使うIMF-fixdateの文字列。
+     */
+    static String format(final Instant instant) {
+        return FORMAT.format(instant);
+    }
+
+    /**
+     * If-Modified-Sinceなどの値を解釈する。日が1桁の形式も受け付け、解釈できなければnullを返す。
+     */
+    static Instant parse(final String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+        } catch (final DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * "Date: ...\r\n"をエンコードしたバイト列。書き換えてはならない。
+     */
+    static byte[] headerLine(final long currentTimeMillis) {
+        final long second = Math.floorDiv(currentTimeMillis, 1000);
+        final Line line = cached;
+        if (line.second == second) {
+            return line.bytes;
+        }
+        final String s = "Date: " + FORMAT.format(Instant.ofEpochSecond(second)) + "\r\n";
+        final Line next = new Line(second, s.getBytes(StandardCharsets.US_ASCII));
+        cached = next;
+        return next.bytes;
+    }
+
+    private static final class Line {
+
+        final long second;
+        final byte[] bytes;
+
+        Line(final long second, final byte[] bytes) {
+            this.second = second;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package httpserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * HTTPヘッダーの並び。
+ *
+ * <p>
+ * 名前と値を平たい配列で持ち、名前は大文字小文字を区別せずに比較する。
+ * パーサーが作るヘッダーは受信したバイト列を参照しており、
+ * 名前や値の文字列は必要になったときに初めて作られる。
+ * スレッドセーフではない。
+ */
+public class HttpHeaders {
+
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String AUTHORIZATION = "Authorization";
+    public static final String CACHE_CONTROL = "Cache-Control";
+    public static final String CONNECTION = "Connection";
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+    public static final String CONTENT_LENGTH = "Content-Length";
+    public static final String CONTENT_TYPE = "Content-Type";
+    public static final String DATE = "Date";
+    public static final String ETAG = "ETag";
+    public static final String HOST = "Host";
+    public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+    public static final String IF_NONE_MATCH = "If-None-Match";
+    public static final String LAST_MODIFIED = "Last-Modified";
+    public static final String RANGE = "Range";
+    public static final String RETRY_AFTER = "Retry-After";
+    public static final String SERVER = "Server";
+    public static final String TRANSFER_ENCODING = "Transfer-Encoding";
+    public static final String VARY = "Vary";
+
+    private static final String[] KNOWN_NAMES = { HOST, "User-Agent", "Accept",
+            ACCEPT_ENCODING, "Accept-Language", "Accept-Charset", AUTHORIZATION,
+            CACHE_CONTROL, CONNECTION, CONTENT_LENGTH, CONTENT_TYPE, "Cookie", DATE, "Expect",
+            IF_MODIFIED_SINCE, IF_NONE_MATCH, "Origin", "Pragma", RANGE, "Referer",
+            TRANSFER_ENCODING, "Upgrade", "X-Forwarded-For" };
+    private static final byte[][] KNOWN_NAME_BYTES = new byte[KNOWN_NAMES.length][];
+    static {
+        for (int i = 0; i < KNOWN_NAMES.length; i++) {
+            KNOWN_NAME_BYTES[i] = KNOWN_NAMES[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private String[] names;
+    private String[] values;
+    private int size;
+    private byte[] source;
+    private int[] offsets;
+
+    public HttpHeaders() {
+        this.names = new String[8];
+        this.values = new String[8];
+    }
+
+    /**
+     * sourceの中の位置で表されたヘッダーを持つ。offsetsは名前の開始位置、終了位置、
+     * 値の開始位置、終了位置の4つを1組として並べたもの。
+     */
+    HttpHeaders(final byte[] source, final int[] offsets, final int size) {
+        this.names = new String[size];
+        this.values = new String[size];
+        this.size = size;
+        this.source = source;
+        this.offsets = offsets;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public String name(final int index) {
+        checkIndex(index);
+        String name = names[index];
+        if (name == null) {
+            name = intern(offsets[index * 4], offsets[index * 4 + 1]);
+            names[index] = name;
+        }
+        return name;
+    }
+
+    public String value(final int index) {
+        checkIndex(index);
+        String value = values[index];
+        if (value == null) {
+            value = decode(offsets[index * 4 + 2], offsets[index * 4 + 3]);
+            values[index] = value;
+        }
+        return value;
+    }
+
+    /**
+     * nameの最初の値。無ければnull。
+     */
+    public String get(final String name) {
+        final int index = indexOf(name, 0);
+        return index < 0 ? null : value(index);
+    }
+
+    public List<String> getAll(final String name) {
+        int index = indexOf(name, 0);
+        if (index < 0) {
+            return Collections.emptyList();
+        }
+        final List<String> list = new ArrayList<>(1);
+        while (index >= 0) {
+            list.add(value(index));
+            index = indexOf(name, index + 1);
+        }
+        return list;
+    }
+
+    public boolean contains(final String name) {
+        return indexOf(name, 0) >= 0;
+    }
+
+    /**
+     * カンマ区切りの値のいずれかがtokenと大文字小文字を区別せずに一致すればtrue。
+     */
+    public boolean containsToken(final String name, final String token) {
+        for (int index = indexOf(name, 0); index >= 0; index = indexOf(name, index + 1)) {
+            for (final String t : value(index).split(",")) {
+                if (t.trim().equalsIgnoreCase(token)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public HttpHeaders add(final String name, final String value) {
+        materialize();
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        names[size] = name;
+        values[size] = value;
+        size++;
+        return this;
+    }
+
+    /**
+     * nameの値をvalueだけにする。
+     */
+    public HttpHeaders set(final String name, final String value) {
+        remove(name);
+        return add(name, value);
+    }
+
+    /**
+     * nameのヘッダーを全て取り除く。取り除いたものがあればtrue。
+     */
+    public boolean remove(final String name) {
+        if (contains(name) == false) {
+            return false;
+        }
+        materialize();
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            if (names[i].equalsIgnoreCase(name) == false) {
+                names[j] = names[i];
+                values[j] = values[i];
+                j++;
+            }
+        }
+        Arrays.fill(names, j, size, null);
+        Arrays.fill(values, j, size, null);
+        size = j;
+        return true;
+    }
+
+    public HttpHeaders copy() {
+        final HttpHeaders copy = new HttpHeaders();
+        for (int i = 0; i < size; i++) {
+            copy.add(name(i), value(i));
+        }
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder buf = new StringBuilder("{");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                buf.append(", ");
+            }
+            buf.append(name(i)).append(": ").append(value(i));
+        }
+        return buf.append('}').toString();
+    }
+
+    private int indexOf(final String name, final int from) {
+        for (int i = from; i < size; i++) {
+            final String n = names[i];
+            if (n != null) {
+                if (n == name || n.equalsIgnoreCase(name)) {
+                    return i;
+                }
+            } else if (equalsIgnoreCase(offsets[i * 4], offsets[i * 4 + 1], name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean equalsIgnoreCase(final int start, final int end, final String name) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            final int a = source[start + i] & 0xff;
+            final int b = name.charAt(i);
+            if (a != b && toLowerCase(a) != toLowerCase(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLowerCase(final int c) {
+        return c >= 'A' && c <= 'Z' ? c | 0x20 : c;
+    }
+
+    private void materialize() {
+        if (source == null) {
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            name(i);
+            value(i);
+        }
+        final int capacity = Math.max(8, size * 2);
+        names = Arrays.copyOf(names, capacity);
+        values = Arrays.copyOf(values, capacity);
+        source = null;
+        offsets = null;
+    }
+
+    private String intern(final int start, final int end) {
+        final int length = end - start;
+        for (int i = 0; i < KNOWN_NAME_BYTES.length; i++) {
+            final byte[] known = KNOWN_NAME_BYTES[i];
+            if (known.length == length && Arrays.equals(source, start, end, known, 0, length)) {
+                return KNOWN_NAMES[i];
+            }
+        }
+        return decode(start, end);
+    }
+
+    private String decode(final int start, final int end) {
+        return new String(source, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private void checkIndex(final int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+    }
+}
@@ -1,7 +1,7 @@
 package httpserver;
 
 import java.nio.ByteBuffer;
-import java.util.List;
+import java.util.Collections;
 import java.util.Map;
 
 public class HttpRequest {
@@ -9,18 +9,51 @@ public class HttpRequest {
     public final String method;
     public final String requestTarget;
     public final String httpVersion;
-    public final Map<String, List<String>> headers;
-    public final int contentLength;
+    public final HttpHeaders headers;
+    public final long contentLength;
     public final ByteBuffer entity;
+    /**
+     * ボディを読み込むチャネル。ボディのないリクエストでは空で、最初のreadが-1を返す。
+     */
+    public final RequestBody body;
+    /**
+     * {@link Router}がパスのパターンから取り出した値。パーセントエンコードは解除しない。
+     */
+    public final Map<String, String> pathParameters;
 
     public HttpRequest(final String method, final String requestTarget, final String httpVersion,
-            final Map<String, List<String>> headers, final int contentLength,
+            final HttpHeaders headers, final long contentLength,
             final ByteBuffer entity) {
+        this(method, requestTarget, httpVersion, headers, contentLength, entity,
+                entity != null ? RequestBody.of(entity) : RequestBody.empty());
+    }
+
+    public HttpRequest(final String method, final String requestTarget, final String httpVersion,
+            final HttpHeaders headers, final long contentLength,
+            final ByteBuffer entity, final RequestBody body) {
+        this(method, requestTarget, httpVersion, headers, contentLength, entity, body,
+                Collections.emptyMap());
+    }
+
+    private HttpRequest(final String method, final String requestTarget,
+            final String httpVersion, final HttpHeaders headers, final long contentLength,
+            final ByteBuffer entity, final RequestBody body,
+            final Map<String, String> pathParameters) {
         this.method = method;
         this.requestTarget = requestTarget;
         this.httpVersion = httpVersion;
         this.headers = headers;
         this.contentLength = contentLength;
         this.entity = entity;
+        this.body = body != null ? body : RequestBody.empty();
+        this.pathParameters = pathParameters;
+    }
+
+    /**
+     * pathParameters以外が同じリクエストを返す。
+     */
+    public HttpRequest withPathParameters(final Map<String, String> pathParameters) {
+        return new HttpRequest(method, requestTarget, httpVersion, headers, contentLength, entity,
+                body, Collections.unmodifiableMap(pathParameters));
     }
 }
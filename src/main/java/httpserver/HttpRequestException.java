@@ -0,0 +1,20 @@
+package httpserver;
+
+/**
+ * リクエストが不正であるか制限を超えているために処理できないことを表す。
+ * statusCodeとreasonPhraseはクライアントへ返すレスポンスに使われる。
+ */
+public class HttpRequestException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public final int statusCode;
+    public final String reasonPhrase;
+
+    public HttpRequestException(final int statusCode, final String reasonPhrase,
+            final String message) {
+        super(message);
+        this.statusCode = statusCode;
+        this.reasonPhrase = reasonPhrase;
+    }
+}
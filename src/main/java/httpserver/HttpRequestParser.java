@@ -1,27 +1,130 @@
 package httpserver;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public class HttpRequestParser {
 
-    private ByteBuffer out = ByteBuffer.allocate(32);
-    private String method;
-    private String requestTarget;
-    private String httpVersion;
-    private String headerName;
-    private final Map<String, List<String>> headers = new HashMap<>();
-    private int contentLength = -1;
+    private static final int REQUEST_LINE = 0;
+    private static final int HEADER_LINE = 1;
+    private static final int ENTITY = 2;
+    private static final int BODY = 3;
+    private static final int COMPLETE = 4;
+
+    private static final int CHUNK_SIZE = 0;
+    private static final int CHUNK_DATA = 1;
+    private static final int CHUNK_DATA_END = 2;
+    private static final int CHUNK_TRAILER = 3;
+
+    private static final String[] KNOWN_METHODS = { "GET", "POST", "PUT", "DELETE", "HEAD",
+            "OPTIONS", "PATCH", "TRACE", "CONNECT" };
+    private static final String[] KNOWN_VERSIONS = { "HTTP/1.1", "HTTP/1.0" };
+    private static final byte[][] KNOWN_METHOD_BYTES = toBytes(KNOWN_METHODS);
+    private static final byte[][] KNOWN_VERSION_BYTES = toBytes(KNOWN_VERSIONS);
+    private static final byte[] CONTENT_LENGTH = "content-length"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_1 = "HTTP/1.".getBytes(StandardCharsets.US_ASCII);
+
+    private final int maxBufferedEntitySize;
+    private final long bodyBufferCapacity;
+    private final int maxHeaderSize;
+    private final long maxBodySize;
+    private final int maxRequestLineLength;
+    private final int maxHeaderCount;
+    private int state = REQUEST_LINE;
+    private byte[] head = new byte[256];
+    private int headLength;
+    private int lineStart;
+    private int methodEnd;
+    private int requestTargetStart;
+    private int requestTargetEnd;
+    private int httpVersionStart;
+    private int httpVersionEnd;
+    private int[] headerOffsets = new int[64];
+    private int headerCount;
+    private long contentLength = -1;
     private ByteBuffer entity;
-    private PartialParser parser = new MethodParser();
+    private RequestBody body;
+    private long bodyRemaining;
+    private long bodyReceived;
+    private boolean chunked;
+    private int chunkState;
+
+    public HttpRequestParser() {
+        this(Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxBufferedEntitySize この長さ以下のボディはentityとして読み込まれ、
+     *            超えるものは{@link RequestBody}でストリーミングされる
+     * @param bodyBufferCapacity ストリーミング時にハンドラーが消費していないボディを溜めておけるバイト数
+     */
+    public HttpRequestParser(final int maxBufferedEntitySize, final long bodyBufferCapacity) {
+        this(maxBufferedEntitySize, bodyBufferCapacity, Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
 
+    /**
+     * @param maxHeaderSize リクエストラインとヘッダーの合計の最大バイト数。超えると431
+     * @param maxBodySize ボディの最大バイト数。超えると413
+     */
+    public HttpRequestParser(final int maxBufferedEntitySize, final long bodyBufferCapacity,
+            final int maxHeaderSize, final long maxBodySize) {
+        this(maxBufferedEntitySize, bodyBufferCapacity, maxHeaderSize, maxBodySize,
+                Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxRequestLineLength リクエストラインの最大バイト数。超えると414
+     * @param maxHeaderCount ヘッダーの最大数。超えると431
+     */
+    public HttpRequestParser(final int maxBufferedEntitySize, final long bodyBufferCapacity,
+            final int maxHeaderSize, final long maxBodySize, final int maxRequestLineLength,
+            final int maxHeaderCount) {
+        this.maxBufferedEntitySize = maxBufferedEntitySize;
+        this.bodyBufferCapacity = bodyBufferCapacity;
+        this.maxHeaderSize = maxHeaderSize;
+        this.maxBodySize = maxBodySize;
+        this.maxRequestLineLength = maxRequestLineLength;
+        this.maxHeaderCount = maxHeaderCount;
+    }
+
+    /**
+     * @throws HttpRequestException リクエストが不正であるか制限を超えている場合
+     */
     public boolean parse(final ByteBuffer in) {
         while (in.hasRemaining()) {
-            final boolean parsed = parser.parse(in);
-            if (parsed) {
+            switch (state) {
+            case REQUEST_LINE:
+                if (readLine(in)) {
+                    if (headLength == 0) {
+                        // リクエストの前の空行は無視する
+                        break;
+                    }
+                    parseRequestLine();
+                    state = HEADER_LINE;
+                }
+                break;
+            case HEADER_LINE:
+                if (readLine(in)) {
+                    if (lineStart < headLength) {
+                        parseHeaderLine();
+                    } else if (endOfHeaders()) {
+                        return true;
+                    }
+                }
+                break;
+            case ENTITY:
+                if (readEntity(in)) {
+                    state = COMPLETE;
+                    return true;
+                }
+                break;
+            case BODY:
+                return true;
+            default:
                 return true;
             }
         }
@@ -29,180 +132,412 @@ public class HttpRequestParser {
     }
 
     public HttpRequest build() {
-        return new HttpRequest(method, requestTarget, httpVersion, headers, contentLength, entity);
+        final String method = intern(head, 0, methodEnd, KNOWN_METHODS, KNOWN_METHOD_BYTES);
+        final String requestTarget = decode(requestTargetStart, requestTargetEnd);
+        final String httpVersion = intern(head, httpVersionStart, httpVersionEnd,
+                KNOWN_VERSIONS, KNOWN_VERSION_BYTES);
+        final HttpHeaders headers = new HttpHeaders(Arrays.copyOf(head, headLength),
+                Arrays.copyOf(headerOffsets, headerCount * 4), headerCount);
+        if (state == BODY) {
+            body = new RequestBody(contentLength, bodyBufferCapacity);
+        } else if (entity != null) {
+            body = RequestBody.of(entity);
+        }
+        return new HttpRequest(method, requestTarget, httpVersion, headers, contentLength, entity,
+                body);
+    }
+
+    /**
+     * buildしたリクエストのボディをまだストリーミングしている途中ならtrue。
+     */
+    public boolean isBodyPending() {
+        return state == BODY;
     }
 
-    private void put(final byte b) {
-        if (out.hasRemaining() == false) {
-            final ByteBuffer buf = ByteBuffer.allocate(out.capacity() * 2);
-            out.flip();
-            buf.put(out);
-            out = buf;
+    /**
+     * リクエストラインかヘッダーを途中まで受け取っていればtrue。
+     */
+    public boolean isHeadPending() {
+        return (state == REQUEST_LINE || state == HEADER_LINE) && headLength > 0;
+    }
+
+    /**
+     * entityとして読み込むボディを途中まで受け取っていればtrue。
+     */
+    public boolean isEntityPending() {
+        return state == ENTITY;
+    }
+
+    /**
+     * inからボディのバイト列を{@link RequestBody}へ渡す。
+     * ボディを最後まで渡し終えたらtrueを返す。
+     *
+     * @throws HttpRequestException チャンクが不正であるかボディが制限を超えている場合
+     */
+    public boolean transferBody(final ByteBuffer in) {
+        if (chunked == false) {
+            offerBody(in);
+            if (bodyRemaining > 0) {
+                return false;
+            }
+            return finishBody();
+        }
+        while (in.hasRemaining()) {
+            switch (chunkState) {
+            case CHUNK_SIZE:
+                if (readLine(in)) {
+                    bodyRemaining = parseChunkSize(lineStart, headLength);
+                    headLength = lineStart;
+                    chunkState = bodyRemaining > 0 ? CHUNK_DATA : CHUNK_TRAILER;
+                }
+                break;
+            case CHUNK_DATA:
+                offerBody(in);
+                if (bodyRemaining == 0) {
+                    chunkState = CHUNK_DATA_END;
+                }
+                break;
+            case CHUNK_DATA_END:
+                if (readLine(in)) {
+                    headLength = lineStart;
+                    chunkState = CHUNK_SIZE;
+                }
+                break;
+            default:
+                if (readLine(in)) {
+                    final boolean endOfTrailers = lineStart == headLength;
+                    headLength = lineStart;
+                    if (endOfTrailers) {
+                        return finishBody();
+                    }
+                }
+                break;
+            }
         }
-        out.put(b);
+        return false;
     }
 
-    private ByteBuffer getAsByteBuffer() {
-        out.flip();
-        final ByteBuffer bs = ByteBuffer.allocate(out.limit());
-        bs.put(out);
-        bs.flip();
-        out.clear();
-        return bs;
+    private void offerBody(final ByteBuffer in) {
+        final int length = (int) Math.min(in.remaining(), bodyRemaining);
+        bodyReceived += length;
+        if (bodyReceived > maxBodySize) {
+            throw payloadTooLarge();
+        }
+        final ByteBuffer src = in.duplicate();
+        src.limit(src.position() + length);
+        body.offer(src);
+        in.position(in.position() + length);
+        bodyRemaining -= length;
     }
 
-    private String getAsString() {
-        out.flip();
-        final byte[] bs = new byte[out.limit()];
-        out.get(bs, 0, bs.length);
-        out.clear();
-        return new String(bs);
+    private boolean finishBody() {
+        body.finish();
+        state = COMPLETE;
+        return true;
     }
 
-    interface PartialParser {
-        boolean parse(ByteBuffer in);
+    public RequestBody body() {
+        return body;
     }
 
-    class MethodParser implements PartialParser {
+    public void reset() {
+        state = REQUEST_LINE;
+        headLength = 0;
+        lineStart = 0;
+        headerCount = 0;
+        contentLength = -1;
+        entity = null;
+        body = null;
+        bodyRemaining = 0;
+        bodyReceived = 0;
+        chunked = false;
+        chunkState = CHUNK_SIZE;
+    }
 
-        @Override
-        public boolean parse(final ByteBuffer in) {
-            while (in.hasRemaining()) {
-                final byte b = in.get();
-                if (b == ' ') {
-                    parser = new RequestTargetParser();
-                    method = getAsString();
-                    return false;
-                }
-                put(b);
-            }
+    /**
+     * 改行までのバイト列をまとめてheadへコピーする。
+     * 改行が見つかった場合は末尾のCRLFを取り除いてtrueを返す。
+     */
+    private boolean readLine(final ByteBuffer in) {
+        final int position = in.position();
+        final int limit = in.limit();
+        int end = position;
+        while (end < limit && in.get(end) != '\n') {
+            end++;
+        }
+        final boolean found = end < limit;
+        final int length = end - position;
+        if (state == REQUEST_LINE && headLength + length > maxRequestLineLength) {
+            throw new HttpRequestException(414, "URI Too Long",
+                    "request line exceeds " + maxRequestLineLength + " bytes");
+        }
+        if (state != BODY && headLength + length > maxHeaderSize) {
+            throw new HttpRequestException(431, "Request Header Fields Too Large",
+                    "request header exceeds " + maxHeaderSize + " bytes");
+        }
+        // チャンクのサイズの行とトレーラーは1行ずつ捨てるので、1行の長さだけを制限する
+        if (state == BODY && headLength - lineStart + length > maxHeaderSize) {
+            throw badRequest("chunk line exceeds " + maxHeaderSize + " bytes");
+        }
+        ensureHeadCapacity(length);
+        in.get(head, headLength, length);
+        headLength += length;
+        if (found == false) {
             return false;
         }
+        in.get();
+        if (headLength > lineStart && head[headLength - 1] == '\r') {
+            headLength--;
+        }
+        return true;
     }
 
-    class RequestTargetParser implements PartialParser {
-        @Override
-        public boolean parse(final ByteBuffer in) {
-            while (in.hasRemaining()) {
-                final byte b = in.get();
-                if (b == ' ') {
-                    parser = new HttpVersionParser();
-                    requestTarget = getAsString();
-                    return false;
-                }
-                put(b);
-            }
-            return false;
+    /**
+     * メソッド、リクエストターゲット、HTTPバージョンを1つずつの空白で区切った行だけを受け付ける。
+     */
+    private void parseRequestLine() {
+        methodEnd = indexOf(head, lineStart, headLength, (byte) ' ');
+        requestTargetStart = Math.min(methodEnd + 1, headLength);
+        requestTargetEnd = indexOf(head, requestTargetStart, headLength, (byte) ' ');
+        httpVersionStart = Math.min(requestTargetEnd + 1, headLength);
+        httpVersionEnd = headLength;
+        if (methodEnd == lineStart || requestTargetEnd == requestTargetStart
+                || requestTargetEnd == headLength
+                || isHttp1(httpVersionStart, httpVersionEnd) == false) {
+            throw badRequest("invalid request line: " + decode(lineStart, headLength));
+        }
+        lineStart = headLength;
+    }
+
+    private boolean isHttp1(final int start, final int end) {
+        return end - start == HTTP_1.length + 1
+                && equals(head, start, end - 1, HTTP_1)
+                && head[end - 1] >= '0' && head[end - 1] <= '9';
+    }
+
+    private void parseHeaderLine() {
+        if (headerCount >= maxHeaderCount) {
+            throw new HttpRequestException(431, "Request Header Fields Too Large",
+                    "request header exceeds " + maxHeaderCount + " fields");
+        }
+        final int colon = indexOf(head, lineStart, headLength, (byte) ':');
+        // 名前と:の間の空白は、解釈の違いを使ったリクエストスマグリングを防ぐため拒否する
+        if (colon == headLength || colon == lineStart || isWhitespace(head[lineStart])
+                || isWhitespace(head[colon - 1])) {
+            throw badRequest("invalid header line: " + decode(lineStart, headLength));
+        }
+        int valueStart = colon + 1;
+        int valueEnd = headLength;
+        while (valueStart < valueEnd && isWhitespace(head[valueStart])) {
+            valueStart++;
         }
+        while (valueEnd > valueStart && isWhitespace(head[valueEnd - 1])) {
+            valueEnd--;
+        }
+        if (headerOffsets.length < (headerCount + 1) * 4) {
+            final int[] next = new int[headerOffsets.length * 2];
+            System.arraycopy(headerOffsets, 0, next, 0, headerOffsets.length);
+            headerOffsets = next;
+        }
+        final int offset = headerCount * 4;
+        headerOffsets[offset] = lineStart;
+        headerOffsets[offset + 1] = colon;
+        headerOffsets[offset + 2] = valueStart;
+        headerOffsets[offset + 3] = valueEnd;
+        headerCount++;
+        lineStart = headLength;
     }
 
-    class HttpVersionParser implements PartialParser {
-        @Override
-        public boolean parse(final ByteBuffer in) {
-            while (in.hasRemaining()) {
-                final byte b = in.get();
-                if (b == '\r') {
-                } else if (b == '\n') {
-                    parser = new HeaderCheckParser();
-                    httpVersion = getAsString();
-                    return false;
+    /**
+     * ボディの長さを決める。
+     * 値の異なる複数のContent-Length、Content-LengthとTransfer-Encodingの両方、
+     * chunkedで終わらないTransfer-Encodingは、前段のプロキシと長さの解釈が食い違う恐れがあるので拒否する。
+     */
+    private boolean endOfHeaders() {
+        StringBuilder transferEncoding = null;
+        for (int i = 0; i < headerCount; i++) {
+            final int offset = i * 4;
+            final int nameStart = headerOffsets[offset];
+            final int nameEnd = headerOffsets[offset + 1];
+            if (equalsIgnoreCase(head, nameStart, nameEnd, CONTENT_LENGTH)) {
+                final long value = parseLong(headerOffsets[offset + 2],
+                        headerOffsets[offset + 3]);
+                if (contentLength >= 0 && contentLength != value) {
+                    throw badRequest("conflicting Content-Length");
+                }
+                contentLength = value;
+            } else if (equalsIgnoreCase(head, nameStart, nameEnd, TRANSFER_ENCODING)) {
+                if (transferEncoding == null) {
+                    transferEncoding = new StringBuilder();
                 } else {
-                    put(b);
+                    transferEncoding.append(',');
                 }
+                transferEncoding.append(decode(headerOffsets[offset + 2],
+                        headerOffsets[offset + 3]));
+            }
+        }
+        if (transferEncoding != null) {
+            if (contentLength >= 0) {
+                throw badRequest("both Content-Length and Transfer-Encoding");
+            }
+            final String[] codings = transferEncoding.toString().split(",");
+            if (codings[codings.length - 1].trim().equalsIgnoreCase("chunked") == false) {
+                throw badRequest("invalid Transfer-Encoding: " + transferEncoding);
+            }
+            if (codings.length > 1) {
+                throw new HttpRequestException(501, "Not Implemented",
+                        "unsupported Transfer-Encoding: " + transferEncoding);
             }
+            chunked = true;
+        }
+        if (contentLength > maxBodySize) {
+            throw payloadTooLarge();
+        }
+        if (chunked) {
+            contentLength = -1;
+            chunkState = CHUNK_SIZE;
+            state = BODY;
+            return true;
+        }
+        if (contentLength > maxBufferedEntitySize) {
+            bodyRemaining = contentLength;
+            state = BODY;
+            return true;
+        }
+        if (contentLength > 0) {
+            entity = ByteBuffer.allocate((int) contentLength);
+            state = ENTITY;
             return false;
         }
+        if (contentLength == 0) {
+            entity = ByteBuffer.allocate(0);
+        }
+        state = COMPLETE;
+        return true;
     }
 
-    class HeaderCheckParser implements PartialParser {
-        @Override
-        public boolean parse(final ByteBuffer in) {
-            while (in.hasRemaining()) {
-                final byte b = in.get();
-                if (b == '\r') {
-                } else if (b == '\n') {
-                    final List<String> value = headers.get("Content-Length");
-                    if (value != null) {
-                        parser = new EntityParser();
-                        contentLength = Integer.parseInt(value.get(0));
-                        if (out.capacity() < contentLength) {
-                            out = ByteBuffer.allocate(contentLength);
-                        }
-                        return false;
-                    }
-                    return true;
-                } else {
-                    parser = new HeaderNameParser();
-                    in.position(in.position() - 1);
-                    return false;
-                }
-            }
+    private boolean readEntity(final ByteBuffer in) {
+        final int length = Math.min(in.remaining(), entity.remaining());
+        in.get(entity.array(), entity.position(), length);
+        entity.position(entity.position() + length);
+        if (entity.hasRemaining()) {
             return false;
         }
+        entity.flip();
+        return true;
     }
 
-    class HeaderNameParser implements PartialParser {
-        @Override
-        public boolean parse(final ByteBuffer in) {
-            while (in.hasRemaining()) {
-                final byte b = in.get();
-                if (b == ':') {
-                    parser = new HeaderIntervalParser();
-                    headerName = getAsString();
-                    return false;
-                }
-                put(b);
+    private void ensureHeadCapacity(final int length) {
+        if (head.length < headLength + length) {
+            final byte[] next = new byte[Math.max(head.length * 2, headLength + length)];
+            System.arraycopy(head, 0, next, 0, headLength);
+            head = next;
+        }
+    }
+
+    private long parseLong(final int start, final int end) {
+        if (start == end) {
+            throw badRequest("empty Content-Length");
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            final int digit = head[i] - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                throw badRequest("invalid Content-Length: " + decode(start, end));
             }
-            return false;
+            value = value * 10 + digit;
         }
+        return value;
     }
 
-    class HeaderIntervalParser implements PartialParser {
-        @Override
-        public boolean parse(final ByteBuffer in) {
-            while (in.hasRemaining()) {
-                final byte b = in.get();
-                if (b != ' ') {
-                    parser = new HeaderValueParser();
-                    in.position(in.position() - 1);
-                    return false;
-                }
+    private long parseChunkSize(final int start, final int end) {
+        long value = 0;
+        int i = start;
+        for (; i < end; i++) {
+            final int digit = Character.digit(head[i], 16);
+            if (digit < 0) {
+                break;
             }
-            return false;
+            if (value > (Long.MAX_VALUE >> 4)) {
+                throw badRequest("invalid chunk size: " + decode(start, end));
+            }
+            value = (value << 4) + digit;
+        }
+        if (i == start || (i < end && head[i] != ';' && isWhitespace(head[i]) == false)) {
+            throw badRequest("invalid chunk size: " + decode(start, end));
         }
+        return value;
     }
 
-    class HeaderValueParser implements PartialParser {
-        @Override
-        public boolean parse(final ByteBuffer in) {
-            while (in.hasRemaining()) {
-                final byte b = in.get();
-                if (b == '\r') {
-                } else if (b == '\n') {
-                    parser = new HeaderCheckParser();
-                    headers.computeIfAbsent(headerName, key -> new ArrayList<>())
-                            .add(getAsString());
-                    return false;
-                } else {
-                    put(b);
-                }
+    private static HttpRequestException badRequest(final String message) {
+        return new HttpRequestException(400, "Bad Request", message);
+    }
+
+    private HttpRequestException payloadTooLarge() {
+        return new HttpRequestException(413, "Payload Too Large",
+                "request body exceeds " + maxBodySize + " bytes");
+    }
+
+    private String decode(final int start, final int end) {
+        return new String(head, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String intern(final byte[] bs, final int start, final int end,
+            final String[] known, final byte[][] knownBytes) {
+        for (int i = 0; i < knownBytes.length; i++) {
+            if (equals(bs, start, end, knownBytes[i])) {
+                return known[i];
             }
-            return false;
         }
+        return new String(bs, start, end - start, StandardCharsets.ISO_8859_1);
     }
 
-    class EntityParser implements PartialParser {
-        @Override
-        public boolean parse(final ByteBuffer in) {
-            while (in.hasRemaining()) {
-                final byte b = in.get();
-                put(b);
-                if ((out.position() < contentLength) == false) {
-                    entity = getAsByteBuffer();
-                    return true;
-                }
+    private static boolean equals(final byte[] bs, final int start, final int end,
+            final byte[] other) {
+        if (end - start != other.length) {
+            return false;
+        }
+        for (int i = 0; i < other.length; i++) {
+            if (bs[start + i] != other[i]) {
+                return false;
             }
+        }
+        return true;
+    }
+
+    private static boolean equalsIgnoreCase(final byte[] bs, final int start, final int end,
+            final byte[] lowerCase) {
+        if (end - start != lowerCase.length) {
             return false;
         }
+        for (int i = 0; i < lowerCase.length; i++) {
+            final byte b = bs[start + i];
+            final byte lower = b >= 'A' && b <= 'Z' ? (byte) (b | 0x20) : b;
+            if (lower != lowerCase[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(final byte[] bs, final int start, final int end, final byte b) {
+        for (int i = start; i < end; i++) {
+            if (bs[i] == b) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static boolean isWhitespace(final byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static byte[][] toBytes(final String[] ss) {
+        final byte[][] bss = new byte[ss.length][];
+        for (int i = 0; i < ss.length; i++) {
+            bss[i] = ss[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        return bss;
     }
 }
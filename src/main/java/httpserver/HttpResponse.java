@@ -1,22 +1,61 @@
 package httpserver;
 
 import java.nio.ByteBuffer;
-import java.util.List;
-import java.util.Map;
 
 public class HttpResponse {
 
     public final int statusCode;
     public final String reasonPhrase;
-    public final Map<String, List<String>> headers;
+    public final HttpHeaders headers;
+    public final HeaderBlock headerBlock;
     public final ByteBuffer entity;
+    public final ResponseBody body;
 
     public HttpResponse(final int statusCode, final String reasonPhrase,
-            final Map<String, List<String>> headers,
+            final HttpHeaders headers) {
+        this(statusCode, reasonPhrase, headers, (ByteBuffer) null);
+    }
+
+    public HttpResponse(final int statusCode, final String reasonPhrase,
+            final HttpHeaders headers,
             final ByteBuffer entity) {
+        this(statusCode, reasonPhrase, headers, null, entity, null);
+    }
+
+    public HttpResponse(final int statusCode, final String reasonPhrase,
+            final HttpHeaders headers,
+            final ResponseBody body) {
+        this(statusCode, reasonPhrase, headers, null, null, body);
+    }
+
+    /**
+     * 事前に組み立てたヘッダーを使う。レスポンスごとのヘッダーはheadersへ追加できる。
+     */
+    public HttpResponse(final int statusCode, final String reasonPhrase,
+            final HeaderBlock headerBlock, final ByteBuffer entity) {
+        this(statusCode, reasonPhrase, new HttpHeaders(), headerBlock, entity, null);
+    }
+
+    public HttpResponse(final int statusCode, final String reasonPhrase,
+            final HeaderBlock headerBlock, final ResponseBody body) {
+        this(statusCode, reasonPhrase, new HttpHeaders(), headerBlock, null, body);
+    }
+
+    /**
+     * ステータスとHeaderBlockが同じで、ヘッダーとエンティティを置き換えたレスポンスを返す。
+     */
+    HttpResponse withEntity(final HttpHeaders headers, final ByteBuffer entity) {
+        return new HttpResponse(statusCode, reasonPhrase, headers, headerBlock, entity, null);
+    }
+
+    private HttpResponse(final int statusCode, final String reasonPhrase,
+            final HttpHeaders headers, final HeaderBlock headerBlock, final ByteBuffer entity,
+            final ResponseBody body) {
         this.statusCode = statusCode;
         this.reasonPhrase = reasonPhrase;
         this.headers = headers;
+        this.headerBlock = headerBlock;
         this.entity = entity;
+        this.body = body;
     }
 }
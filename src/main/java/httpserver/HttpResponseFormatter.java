@@ -1,19 +1,100 @@
 package httpserver;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.nio.charset.StandardCharsets;
 
 public class HttpResponseFormatter {
 
-    private ByteBuffer buf = ByteBuffer.allocate(32);
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] COLON = ascii(": ");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = ascii(
+            "Transfer-Encoding: chunked\r\n");
+    private static final byte[] SERVER = ascii("Server: backpaper0-http-server\r\n");
+    private static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+    private static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
 
+    private static final String[] REASON_PHRASES = new String[600];
+    private static final byte[][] STATUS_LINES = new byte[600][];
+    static {
+        statusLine(200, "OK");
+        statusLine(201, "Created");
+        statusLine(202, "Accepted");
+        statusLine(204, "No Content");
+        statusLine(206, "Partial Content");
+        statusLine(301, "Moved Permanently");
+        statusLine(302, "Found");
+        statusLine(303, "See Other");
+        statusLine(304, "Not Modified");
+        statusLine(307, "Temporary Redirect");
+        statusLine(308, "Permanent Redirect");
+        statusLine(400, "Bad Request");
+        statusLine(401, "Unauthorized");
+        statusLine(403, "Forbidden");
+        statusLine(404, "Not Found");
+        statusLine(405, "Method Not Allowed");
+        statusLine(408, "Request Timeout");
+        statusLine(409, "Conflict");
+        statusLine(413, "Payload Too Large");
+        statusLine(416, "Range Not Satisfiable");
+        statusLine(429, "Too Many Requests");
+        statusLine(431, "Request Header Fields Too Large");
+        statusLine(500, "Internal Server Error");
+        statusLine(501, "Not Implemented");
+        statusLine(502, "Bad Gateway");
+        statusLine(503, "Service Unavailable");
+        statusLine(504, "Gateway Timeout");
+    }
+
+    private ByteBuffer buf;
+
+    public HttpResponseFormatter() {
+        this(ByteBuffer.allocate(256));
+    }
+
+    /**
+     * bufへ書き込む。収まらない場合はヒープ上に新しいバッファを確保する。
+     */
+    public HttpResponseFormatter(final ByteBuffer buf) {
+        this.buf = buf;
+    }
+
+    /**
+     * ステータスラインとヘッダーにエンティティを連結して返す。
+     */
     public ByteBuffer format(final HttpResponse response) {
-        final Map<String, List<String>> headers = new HashMap<>();
-        headers.putAll(response.headers);
+        formatHeadTo(response, "HTTP/1.1", true);
+        if (response.entity != null) {
+            put(response.entity.duplicate());
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * ステータスラインとヘッダーだけを返す。エンティティはコピーせずに別のバッファとして書き込む。
+     */
+    public ByteBuffer formatHead(final HttpResponse response) {
+        return formatHead(response, "HTTP/1.1", true);
+    }
+
+    /**
+     * リクエストのHTTPバージョンと接続を維持するかどうかに合わせて
+     * ConnectionヘッダーとTransfer-Encodingヘッダーを付ける。
+     * HTTP/1.0のクライアントには長さの分からないボディをchunkedで送らない。
+     */
+    public ByteBuffer formatHead(final HttpResponse response, final String httpVersion,
+            final boolean keepAlive) {
+        formatHeadTo(response, httpVersion, keepAlive);
+        buf.flip();
+        return buf;
+    }
+
+    private void formatHeadTo(final HttpResponse response, final String httpVersion,
+            final boolean keepAlive) {
+        final boolean http10 = "HTTP/1.0".equals(httpVersion);
+        final HttpHeaders headers = response.headers;
+        final HeaderBlock headerBlock = response.headerBlock;
 
         final ByteBuffer entity = response.entity;
 
@@ -22,52 +103,151 @@ public class HttpResponseFormatter {
             statusCode = entity != null ? 200 : 204;
         }
 
-        put("HTTP/1.1 ");
-        put(String.valueOf(statusCode));
-        put(" ");
-        put(response.reasonPhrase);
-        put("\r\n");
+        putStatusLine(statusCode, response.reasonPhrase);
 
-        if (entity != null) {
-            headers.computeIfAbsent("Content-Length", key -> new ArrayList<>())
-                    .add(String.valueOf(entity.limit()));
+        // 1xx、204、304はボディを持たないので、エンティティがあっても長さを付けない
+        final boolean bodyAllowed = hasBody(statusCode);
+        long contentLength = -1;
+        boolean chunked = false;
+        if (bodyAllowed && entity != null) {
+            contentLength = entity.limit();
+        } else if (bodyAllowed && response.body != null) {
+            final long length = response.body.contentLength();
+            if (length < 0) {
+                chunked = http10 == false;
+            } else {
+                contentLength = length;
+            }
+        }
+        final boolean framed = entity != null || response.body != null;
+        // HeaderBlockはContent-LengthとTransfer-Encodingを含まないので、headersだけを確かめる
+        if (framed == false && bodyAllowed && containsFraming(headers) == false) {
+            // キープアライブの接続でクライアントがボディを待ち続けないように長さを明示する
+            contentLength = 0;
+        }
+        byte[] connection = null;
+        if (keepAlive == false) {
+            connection = CONNECTION_CLOSE;
+        } else if (http10) {
+            connection = CONNECTION_KEEP_ALIVE;
         }
-        headers.computeIfAbsent("Server", key -> new ArrayList<>()).add("backpaper0-http-server");
 
-        headers.forEach((key, values) -> {
-            put(key);
-            put(": ");
-            put(values.stream().collect(Collectors.joining(",")));
-            put("\r\n");
-        });
-        put("\r\n");
-        if (entity != null) {
-            put(entity);
+        if (headerBlock != null) {
+            put(headerBlock.bytes());
         }
-        buf.flip();
-        return buf;
+        for (int i = 0; i < headers.size(); i++) {
+            final String name = headers.name(i);
+            if ((framed || bodyAllowed == false)
+                    && (name.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH)
+                    || name.equalsIgnoreCase(HttpHeaders.TRANSFER_ENCODING))) {
+                continue;
+            }
+            if (connection != null && name.equalsIgnoreCase(HttpHeaders.CONNECTION)) {
+                continue;
+            }
+            put(name);
+            put(COLON);
+            put(headers.value(i));
+            put(CRLF);
+        }
+        if (contentLength >= 0) {
+            put(CONTENT_LENGTH);
+            putDecimal(contentLength);
+            put(CRLF);
+        }
+        if (chunked) {
+            put(TRANSFER_ENCODING_CHUNKED);
+        }
+        if ((headerBlock == null || headerBlock.containsDate() == false)
+                && headers.contains(HttpHeaders.DATE) == false) {
+            put(HttpDate.headerLine(System.currentTimeMillis()));
+        }
+        if ((headerBlock == null || headerBlock.containsServer() == false)
+                && headers.contains(HttpHeaders.SERVER) == false) {
+            put(SERVER);
+        }
+        if (connection != null) {
+            put(connection);
+        }
+        put(CRLF);
+    }
+
+    private static boolean hasBody(final int statusCode) {
+        return statusCode >= 200 && statusCode != 204 && statusCode != 304;
+    }
+
+    private static boolean containsFraming(final HttpHeaders headers) {
+        return headers.contains(HttpHeaders.CONTENT_LENGTH)
+                || headers.contains(HttpHeaders.TRANSFER_ENCODING);
+    }
+
+    private void putStatusLine(final int statusCode, final String reasonPhrase) {
+        if (statusCode >= 0 && statusCode < STATUS_LINES.length
+                && STATUS_LINES[statusCode] != null
+                && REASON_PHRASES[statusCode].equals(reasonPhrase)) {
+            put(STATUS_LINES[statusCode]);
+            return;
+        }
+        put("HTTP/1.1 ");
+        putDecimal(statusCode);
+        put(" ");
+        put(reasonPhrase);
+        put(CRLF);
     }
 
     private void put(final ByteBuffer b) {
-        if ((buf.position() + b.limit() < buf.capacity()) == false) {
+        ensureRemaining(b.limit());
+        buf.put(b);
+    }
+
+    private void put(final byte[] bs) {
+        ensureRemaining(bs.length);
+        buf.put(bs);
+    }
+
+    private void putDecimal(final long value) {
+        if (value < 0) {
+            put(String.valueOf(value));
+            return;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        ensureRemaining(digits);
+        final int position = buf.position();
+        long v = value;
+        for (int i = digits - 1; i >= 0; i--) {
+            buf.put(position + i, (byte) ('0' + v % 10));
+            v /= 10;
+        }
+        buf.position(position + digits);
+    }
+
+    private void ensureRemaining(final int length) {
+        if ((buf.position() + length < buf.capacity()) == false) {
             final ByteBuffer next = ByteBuffer
-                    .allocate(Math.max(buf.capacity() * 2, buf.position() + b.limit()));
+                    .allocate(Math.max(buf.capacity() * 2, buf.position() + length));
             buf.flip();
             next.put(buf);
             buf = next;
         }
-        buf.put(b);
     }
 
     private void put(final String s) {
-        final byte[] bs = s.getBytes();
-        if ((buf.position() + bs.length < buf.capacity()) == false) {
-            final ByteBuffer next = ByteBuffer
-                    .allocate(Math.max(buf.capacity() * 2, buf.position() + bs.length));
-            buf.flip();
-            next.put(buf);
-            buf = next;
+        final int length = s.length();
+        ensureRemaining(length);
+        for (int i = 0; i < length; i++) {
+            buf.put((byte) s.charAt(i));
         }
-        buf.put(bs);
+    }
+
+    private static void statusLine(final int statusCode, final String reasonPhrase) {
+        REASON_PHRASES[statusCode] = reasonPhrase;
+        STATUS_LINES[statusCode] = ascii("HTTP/1.1 " + statusCode + " " + reasonPhrase + "\r\n");
+    }
+
+    private static byte[] ascii(final String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
     }
 }
@@ -1,73 +1,736 @@
 package httpserver;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.AbstractSelectableChannel;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Deque;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 public class HttpServer {
 
     private static final Logger logger = Logger.getLogger(HttpServer.class.getName());
+    private static final ByteBuffer SERVICE_UNAVAILABLE = ByteBuffer
+            .wrap("Service Unavailable".getBytes()).asReadOnlyBuffer();
     private final String host;
     private final int port;
-    private final HttpHandler handler;
-    private final Worker acceptWorker;
-    private final AtomicInteger counter = new AtomicInteger(0);
+    private final AsyncHttpHandler handler;
+    /**
+     * SO_REUSEPORTを使わない場合だけ、startで作る受け付け専用のWorker。
+     */
+    private volatile Worker acceptWorker;
     private final List<Worker> ioWorkers;
+    private final DispatchMode dispatchMode;
+    private final ConnectionBalancer connectionBalancer;
+    private final int maxBufferedEntitySize;
+    private final int requestBodyBufferSize;
+    private final int bufferSize;
+    private final int maxPooledBuffers;
+    private final Duration idleTimeout;
+    private final int maxRequestsPerConnection;
+    private final boolean reusePort;
+    private final int backlog;
+    private final boolean tcpNoDelay;
+    private final int receiveBufferSize;
+    private final int sendBufferSize;
+    private final int maxHeaderSize;
+    private final long maxBodySize;
+    private final int maxRequestLineLength;
+    private final int maxHeaderCount;
+    private final long headerReadTimeout;
+    private final long bodyReadTimeout;
+    private final long requestTimeout;
+    private final int writeBufferLowWaterMark;
+    private final int writeBufferHighWaterMark;
+    private final int maxPipelinedRequests;
+    private final int maxConnections;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final HeaderBlock serviceUnavailableHeaders;
+    private final boolean jmx;
+    private final String metricsPath;
+    private final boolean compression;
+    private final int compressionLevel;
+    private final int compressionMinSize;
+    private final List<String> compressibleContentTypes;
+    private final long maxCompressionCacheBytes;
+    private final int maxCompressionCacheEntrySize;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final List<AcceptHandler> acceptHandlers = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    /**
+     * {@link #shutdownGracefully(Duration)}を呼び出した後はnullでない。
+     */
+    private volatile CompletableFuture<Void> drained;
+    private final ServerMetrics metrics;
+    private final HttpHandler metricsHandler;
+    private ObjectName objectName;
+    private volatile int localPort = -1;
 
+    /**
+     * デフォルトの設定でサーバーを作る。
+     */
     public HttpServer(final String host, final int port, final HttpHandler handler) {
-        this.host = host;
-        this.port = port;
-        this.handler = Objects.requireNonNull(handler);
-        this.acceptWorker = new Worker(Selector::open);
-        final int size = Runtime.getRuntime().availableProcessors() - 1;
-        this.ioWorkers = IntStream.range(0, size)
-                .mapToObj(i -> new Worker(Selector::open)).collect(Collectors.toList());
+        this(builder(handler).host(host).port(port));
+    }
+
+    private HttpServer(final Builder builder) {
+        this.host = builder.host;
+        this.port = builder.port;
+        this.handler = builder.handler;
+        this.dispatchMode = builder.dispatchMode;
+        this.connectionBalancer = builder.connectionBalancer;
+        this.maxBufferedEntitySize = builder.maxBufferedEntitySize;
+        this.requestBodyBufferSize = builder.requestBodyBufferSize;
+        this.bufferSize = builder.bufferSize;
+        this.maxPooledBuffers = builder.maxPooledBuffers;
+        this.idleTimeout = builder.idleTimeout;
+        this.maxRequestsPerConnection = builder.maxRequestsPerConnection;
+        this.reusePort = builder.reusePort;
+        this.backlog = builder.backlog;
+        this.tcpNoDelay = builder.tcpNoDelay;
+        this.receiveBufferSize = builder.receiveBufferSize;
+        this.sendBufferSize = builder.sendBufferSize;
+        this.maxHeaderSize = builder.maxHeaderSize;
+        this.maxBodySize = builder.maxBodySize;
+        this.maxRequestLineLength = builder.maxRequestLineLength;
+        this.maxHeaderCount = builder.maxHeaderCount;
+        this.headerReadTimeout = builder.headerReadTimeout.toMillis();
+        this.bodyReadTimeout = builder.bodyReadTimeout.toMillis();
+        this.requestTimeout = builder.requestTimeout.toMillis();
+        this.writeBufferLowWaterMark = builder.writeBufferLowWaterMark;
+        this.writeBufferHighWaterMark = builder.writeBufferHighWaterMark;
+        this.maxPipelinedRequests = builder.maxPipelinedRequests;
+        this.maxConnections = builder.maxConnections;
+        this.concurrencyLimiter = builder.concurrencyLimiter;
+        final HttpHeaders serviceUnavailable = new HttpHeaders();
+        serviceUnavailable.add(HttpHeaders.CONTENT_TYPE, "text/plain");
+        serviceUnavailable.add(HttpHeaders.RETRY_AFTER,
+                String.valueOf(builder.retryAfter.getSeconds()));
+        this.serviceUnavailableHeaders = HeaderBlock.of(serviceUnavailable);
+        this.jmx = builder.jmx;
+        this.metricsPath = builder.metricsPath;
+        this.compression = builder.compression;
+        this.compressionLevel = builder.compressionLevel;
+        this.compressionMinSize = builder.compressionMinSize;
+        this.compressibleContentTypes = builder.compressibleContentTypes;
+        this.maxCompressionCacheBytes = builder.maxCompressionCacheBytes;
+        this.maxCompressionCacheEntrySize = builder.maxCompressionCacheEntrySize;
+        this.ioWorkers = IntStream.range(0, builder.ioWorkers)
+                .mapToObj(i -> new Worker(String.valueOf(i), Selector::open))
+                .collect(Collectors.toList());
+        this.metrics = new ServerMetrics(ioWorkers.stream().map(worker -> worker.metrics)
+                .collect(Collectors.toList()));
+        this.metricsHandler = metricsPath != null ? new MetricsHandler(metrics) : null;
+    }
+
+    public static Builder builder(final HttpHandler handler) {
+        return new Builder(AsyncHttpHandler.of(handler));
+    }
+
+    /**
+     * レスポンスを非同期に返すハンドラーでサーバーを作るビルダー。
+     */
+    public static Builder asyncBuilder(final AsyncHttpHandler handler) {
+        return new Builder(Objects.requireNonNull(handler));
+    }
+
+    public List<BufferPool> bufferPools() {
+        return ioWorkers.stream().map(worker -> worker.bufferPool).collect(Collectors.toList());
+    }
+
+    /**
+     * I/O Workerごとの計測値とその集計。
+     */
+    public ServerMetrics metrics() {
+        return metrics;
     }
 
     public void start() throws IOException {
         logger.info(() -> "start");
-        acceptWorker.start();
+        if (jmx) {
+            registerMBean();
+        }
+        ioWorkers.forEach(worker -> worker.bufferPool = new BufferPool(bufferSize,
+                maxPooledBuffers));
+        if (compression) {
+            ioWorkers.forEach(worker -> worker.compressor = new ResponseCompressor(
+                    compressionLevel, compressionMinSize, compressibleContentTypes,
+                    maxCompressionCacheBytes, maxCompressionCacheEntrySize));
+        }
         ioWorkers.forEach(Thread::start);
+        final ServerSocketChannel ssc = openServerSocketChannel();
+        if (reusePort && ssc.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            ssc.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            ssc.bind(new InetSocketAddress(host, port), backlog);
+            // ポート0の場合も全てのWorkerが同じポートで待ち受けるようにする
+            localPort = ((InetSocketAddress) ssc.getLocalAddress()).getPort();
+            final InetSocketAddress local = new InetSocketAddress(host, localPort);
+            for (final Worker worker : ioWorkers) {
+                final ServerSocketChannel channel;
+                if (worker == ioWorkers.get(0)) {
+                    channel = ssc;
+                } else {
+                    channel = openServerSocketChannel();
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    channel.bind(local, backlog);
+                }
+                worker.register(channel, SelectionKey.OP_ACCEPT, new AcceptHandler(worker));
+            }
+            logger.info(() -> "accepting with SO_REUSEPORT on " + ioWorkers.size() + " workers");
+            return;
+        }
+        if (reusePort) {
+            logger.info(() -> "SO_REUSEPORT is not supported, falling back to single acceptor");
+        }
+        final Worker acceptor = new Worker("acceptor", Selector::open);
+        acceptWorker = acceptor;
+        acceptor.start();
+        ssc.bind(new InetSocketAddress(host, port), backlog);
+        localPort = ((InetSocketAddress) ssc.getLocalAddress()).getPort();
+        acceptor.register(ssc, SelectionKey.OP_ACCEPT, new AcceptHandler(null));
+    }
+
+    /**
+     * 待ち受けているポート。ポートに0を指定した場合は割り当てられたポートで、開始する前は-1。
+     */
+    public int localPort() {
+        return localPort;
+    }
+
+    private ServerSocketChannel openServerSocketChannel() throws IOException {
         final ServerSocketChannel ssc = ServerSocketChannel.open();
         ssc.configureBlocking(false);
         ssc.setOption(StandardSocketOptions.SO_REUSEADDR, true);
-        ssc.bind(new InetSocketAddress(host, port));
-        acceptWorker.register(ssc, SelectionKey.OP_ACCEPT, new AcceptHandler());
+        if (receiveBufferSize > 0) {
+            ssc.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+        return ssc;
     }
 
+    private void registerMBean() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            // 同じポートのサーバーを複数作っても衝突しないように識別子を付ける
+            objectName = new ObjectName("httpserver:type=HttpServer,name=" + ObjectName.quote(
+                    host + ":" + port + "@" + Integer.toHexString(System.identityHashCode(this))));
+            server.registerMBean(metrics, objectName);
+        } catch (final JMException e) {
+            logger.log(Level.WARNING, "failed to register MBean", e);
+            objectName = null;
+        }
+    }
+
+    /**
+     * 受け付けと全ての接続をすぐに閉じて停止する。処理中のリクエストのレスポンスは捨てる。
+     */
     public void stop() {
+        if (stopped.compareAndSet(false, true) == false) {
+            return;
+        }
         logger.info(() -> "stop");
-        acceptWorker.shutdown();
+        final Worker acceptor = acceptWorker;
+        if (acceptor != null) {
+            acceptor.shutdown();
+        }
         ioWorkers.forEach(Worker::shutdown);
+        dispatchMode.shutdown();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (final JMException e) {
+                logger.log(Level.WARNING, "failed to unregister MBean", e);
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * 新しい接続の受け付けをすぐに止め、処理中のリクエストを最後まで処理してから停止する。
+     *
+     * <p>
+     * キープアライブの接続には次のレスポンスでConnection: closeを返し、
+     * リクエストを処理していない接続はすぐに閉じる。
+     * 全ての接続が閉じると停止し、返したCompletableFutureが完了する。
+     * timeoutを過ぎても接続が残っている場合は{@link #stop()}で閉じ、
+     * CompletableFutureはTimeoutExceptionで完了する。
+     */
+    public synchronized CompletableFuture<Void> shutdownGracefully(final Duration timeout) {
+        if (drained != null) {
+            return drained;
+        }
+        logger.info(() -> "shutdown gracefully");
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        drained = future;
+        acceptHandlers.forEach(AcceptHandler::close);
+        ioWorkers.forEach(Worker::drain);
+        CompletableFuture.delayedExecutor(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .execute(() -> {
+                    final int remaining = connections.get();
+                    // stopで接続が閉じるとcheckDrainedが正常に完了させてしまうので、先に完了させる
+                    if (future.completeExceptionally(new TimeoutException(
+                            "connections were not closed within " + timeout))) {
+                        logger.warning(() -> remaining
+                                + " connections were not closed within " + timeout);
+                        stop();
+                    }
+                });
+        checkDrained();
+        return future;
+    }
+
+    private void checkDrained() {
+        final CompletableFuture<Void> future = drained;
+        if (future != null && connections.get() == 0 && future.isDone() == false) {
+            stop();
+            future.complete(null);
+        }
+    }
+
+    public static class Builder {
+
+        private final AsyncHttpHandler handler;
+        private String host = "0.0.0.0";
+        private int port = 8080;
+        private int ioWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        private DispatchMode dispatchMode = DispatchMode.inline();
+        private ConnectionBalancer connectionBalancer = ConnectionBalancer.roundRobin();
+        private int maxBufferedEntitySize = 64 * 1024;
+        private int requestBodyBufferSize = 64 * 1024;
+        private int bufferSize = 8192;
+        private int maxPooledBuffers = 64;
+        private Duration idleTimeout = Duration.ofSeconds(60);
+        private int maxRequestsPerConnection = Integer.MAX_VALUE;
+        private boolean reusePort;
+        private int backlog = 1024;
+        private boolean tcpNoDelay = true;
+        private int receiveBufferSize;
+        private int sendBufferSize;
+        private int maxHeaderSize = 8192;
+        private long maxBodySize = Long.MAX_VALUE;
+        private int maxRequestLineLength = 8192;
+        private int maxHeaderCount = 100;
+        private Duration headerReadTimeout = Duration.ofSeconds(10);
+        private Duration bodyReadTimeout = Duration.ofSeconds(60);
+        private Duration requestTimeout = Duration.ZERO;
+        private int writeBufferLowWaterMark = 32 * 1024;
+        private int writeBufferHighWaterMark = 64 * 1024;
+        private int maxPipelinedRequests = 16;
+        private int maxConnections = Integer.MAX_VALUE;
+        private ConcurrencyLimiter concurrencyLimiter = ConcurrencyLimiter.unlimited();
+        private Duration retryAfter = Duration.ofSeconds(1);
+        private boolean jmx;
+        private String metricsPath;
+        private boolean compression;
+        private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        private int compressionMinSize = 1024;
+        private List<String> compressibleContentTypes = Arrays.asList("text/",
+                "application/json", "application/javascript", "application/xml",
+                "image/svg+xml");
+        private long maxCompressionCacheBytes = 8 * 1024 * 1024;
+        private int maxCompressionCacheEntrySize = 1024 * 1024;
+
+        private Builder(final AsyncHttpHandler handler) {
+            this.handler = handler;
+        }
+
+        public Builder host(final String host) {
+            this.host = Objects.requireNonNull(host);
+            return this;
+        }
+
+        /**
+         * 0を指定すると空いているポートが使われる。
+         */
+        public Builder port(final int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * I/O Workerのスレッド数。デフォルトはCPU数から受け付け用のスレッドの分を引いた数で、
+         * 最低でも1になる。
+         */
+        public Builder ioWorkers(final int ioWorkers) {
+            this.ioWorkers = requirePositive(ioWorkers, "ioWorkers");
+            return this;
+        }
+
+        public Builder dispatchMode(final DispatchMode dispatchMode) {
+            this.dispatchMode = Objects.requireNonNull(dispatchMode);
+            return this;
+        }
+
+        /**
+         * 受け付け専用のスレッドが接続をWorkerへ振り分ける方法。デフォルトはラウンドロビン。
+         */
+        public Builder connectionBalancer(final ConnectionBalancer connectionBalancer) {
+            this.connectionBalancer = Objects.requireNonNull(connectionBalancer);
+            return this;
+        }
+
+        /**
+         * Content-Lengthがこの値以下のリクエストボディはentityとして読み込んでからハンドラーへ渡す。
+         * 超える場合はentityはnullになり、ハンドラーはbodyから読み込む。
+         * inlineモードではボディを読み終えてからハンドラーを呼び出すため、メモリ使用量は抑えられない。
+         */
+        public Builder maxBufferedEntitySize(final int maxBufferedEntitySize) {
+            this.maxBufferedEntitySize = maxBufferedEntitySize;
+            return this;
+        }
+
+        /**
+         * ストリーミング中のリクエストボディを接続ごとに溜めておけるバイト数。
+         * これを超えるとハンドラーが消費するまでソケットからの読み込みを止める。
+         */
+        public Builder requestBodyBufferSize(final int requestBodyBufferSize) {
+            this.requestBodyBufferSize = requirePositive(requestBodyBufferSize,
+                    "requestBodyBufferSize");
+            return this;
+        }
+
+        /**
+         * ソケットの読み込みとレスポンスヘッダーの書き込みに使うダイレクトバッファの大きさ。
+         */
+        public Builder bufferSize(final int bufferSize) {
+            this.bufferSize = requirePositive(bufferSize, "bufferSize");
+            return this;
+        }
+
+        /**
+         * Workerごとにプールしておくダイレクトバッファの最大数。
+         */
+        public Builder maxPooledBuffers(final int maxPooledBuffers) {
+            this.maxPooledBuffers = maxPooledBuffers;
+            return this;
+        }
+
+        /**
+         * 処理中のリクエストが無い状態でこの時間が経過した接続は閉じられる。
+         * ゼロを指定するとタイムアウトしない。
+         */
+        public Builder idleTimeout(final Duration idleTimeout) {
+            this.idleTimeout = Objects.requireNonNull(idleTimeout);
+            return this;
+        }
+
+        /**
+         * 1つの接続で処理するリクエストの最大数。最後のリクエストにはConnection: closeを返す。
+         */
+        public Builder maxRequestsPerConnection(final int maxRequestsPerConnection) {
+            this.maxRequestsPerConnection = requirePositive(maxRequestsPerConnection,
+                    "maxRequestsPerConnection");
+            return this;
+        }
+
+        /**
+         * trueにするとWorkerごとにSO_REUSEPORTを指定したServerSocketChannelを開き、
+         * 各Workerが自分のセレクターで接続を受け付ける。接続の振り分けはカーネルが行う。
+         * SO_REUSEPORTを使えない環境では受け付け専用のスレッドを使う方式になる。
+         */
+        public Builder reusePort(final boolean reusePort) {
+            this.reusePort = reusePort;
+            return this;
+        }
+
+        /**
+         * 受け付け待ちの接続のキューの長さ。0以下の場合は実装のデフォルト値になる。
+         */
+        public Builder backlog(final int backlog) {
+            this.backlog = backlog;
+            return this;
+        }
+
+        /**
+         * 受け付けた接続にTCP_NODELAYを設定するかどうか。デフォルトはtrue。
+         */
+        public Builder tcpNoDelay(final boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        /**
+         * SO_RCVBUF。受け付けた接続が引き継ぐようにServerSocketChannelに設定する。
+         * 0の場合はOSのデフォルト値になる。
+         */
+        public Builder receiveBufferSize(final int receiveBufferSize) {
+            this.receiveBufferSize = receiveBufferSize;
+            return this;
+        }
+
+        /**
+         * 受け付けた接続のSO_SNDBUF。0の場合はOSのデフォルト値になる。
+         */
+        public Builder sendBufferSize(final int sendBufferSize) {
+            this.sendBufferSize = sendBufferSize;
+            return this;
+        }
+
+        /**
+         * リクエストラインとヘッダーの合計の最大バイト数。超えると431を返して接続を閉じる。
+         */
+        public Builder maxHeaderSize(final int maxHeaderSize) {
+            this.maxHeaderSize = requirePositive(maxHeaderSize, "maxHeaderSize");
+            return this;
+        }
+
+        /**
+         * リクエストボディの最大バイト数。Content-Lengthが超えている場合は413を返して接続を閉じる。
+         * chunkedのボディが途中で超えた場合はボディを失敗させて接続を閉じる。
+         */
+        public Builder maxBodySize(final long maxBodySize) {
+            this.maxBodySize = maxBodySize;
+            return this;
+        }
+
+        /**
+         * リクエストラインの最大バイト数。超えると414を返して接続を閉じる。デフォルトは8192。
+         */
+        public Builder maxRequestLineLength(final int maxRequestLineLength) {
+            this.maxRequestLineLength = requirePositive(maxRequestLineLength,
+                    "maxRequestLineLength");
+            return this;
+        }
+
+        /**
+         * リクエストヘッダーの最大数。超えると431を返して接続を閉じる。デフォルトは100。
+         */
+        public Builder maxHeaderCount(final int maxHeaderCount) {
+            this.maxHeaderCount = requirePositive(maxHeaderCount, "maxHeaderCount");
+            return this;
+        }
+
+        /**
+         * リクエストラインとヘッダーを受け取り始めてから受け取り終えるまでの制限時間。
+         * 超えると408を返して接続を閉じる。0の場合は制限しない。デフォルトは10秒。
+         */
+        public Builder headerReadTimeout(final Duration headerReadTimeout) {
+            this.headerReadTimeout = Objects.requireNonNull(headerReadTimeout);
+            return this;
+        }
+
+        /**
+         * ヘッダーを受け取り終えてからボディを受け取り終えるまでの制限時間。
+         * ハンドラーがボディを読まずに受信を止めている間は数えない。
+         * 超えると408を返して接続を閉じる。0の場合は制限しない。デフォルトは60秒。
+         */
+        public Builder bodyReadTimeout(final Duration bodyReadTimeout) {
+            this.bodyReadTimeout = Objects.requireNonNull(bodyReadTimeout);
+            return this;
+        }
+
+        /**
+         * ハンドラーを呼び出してからレスポンスが返るまでの制限時間。
+         * 超えると504を返し、後から返ったレスポンスは捨てる。
+         * inlineモードで同期的なハンドラーを実行している間は計らない。
+         * 0の場合は制限しない。デフォルトは0。
+         */
+        public Builder requestTimeout(final Duration requestTimeout) {
+            this.requestTimeout = Objects.requireNonNull(requestTimeout);
+            return this;
+        }
+
+        /**
+         * 接続ごとに書き込み待ちにしておくレスポンスのバイト数の目安。
+         * 書き込み待ちがhighを超えるとその接続から次のリクエストを読むのをやめ、lowまで減ったら再開する。
+         * {@link ChunkedBody}にも同じ値を設定し、{@link ChunkedBody#isWritable()}の判定に使う。
+         * デフォルトは32KiBと64KiB。
+         */
+        public Builder writeBufferWaterMarks(final int low, final int high) {
+            if (low < 0 || low > high) {
+                throw new IllegalArgumentException(
+                        "invalid write buffer water marks: low=" + low + ", high=" + high);
+            }
+            this.writeBufferLowWaterMark = low;
+            this.writeBufferHighWaterMark = requirePositive(high, "high");
+            return this;
+        }
+
+        /**
+         * 1つの接続でレスポンスを返し終えていないリクエストの最大数。
+         * 達するとレスポンスを書き終えるまで次のリクエストを読まない。デフォルトは16。
+         */
+        public Builder maxPipelinedRequests(final int maxPipelinedRequests) {
+            this.maxPipelinedRequests = requirePositive(maxPipelinedRequests,
+                    "maxPipelinedRequests");
+            return this;
+        }
+
+        /**
+         * 同時に開いておく接続の最大数。達すると接続が閉じるまで受け付けを止め、
+         * 新しい接続はOSのバックログで待たせる。
+         */
+        public Builder maxConnections(final int maxConnections) {
+            this.maxConnections = requirePositive(maxConnections, "maxConnections");
+            return this;
+        }
+
+        /**
+         * 同時に処理するリクエストの数の制限。超えたリクエストにはハンドラーを呼ばずに503を返す。
+         * デフォルトは{@link ConcurrencyLimiter#unlimited()}。
+         */
+        public Builder concurrencyLimiter(final ConcurrencyLimiter concurrencyLimiter) {
+            this.concurrencyLimiter = Objects.requireNonNull(concurrencyLimiter);
+            return this;
+        }
+
+        /**
+         * 過負荷で返す503に付けるRetry-After。秒に切り捨てる。デフォルトは1秒。
+         */
+        public Builder retryAfter(final Duration retryAfter) {
+            this.retryAfter = Objects.requireNonNull(retryAfter);
+            return this;
+        }
+
+        /**
+         * 計測値をMXBeanとしてプラットフォームのMBeanServerに登録するかどうか。デフォルトはfalse。
+         */
+        public Builder jmx(final boolean jmx) {
+            this.jmx = jmx;
+            return this;
+        }
+
+        /**
+         * 計測値をPrometheusのテキスト形式で返すパス。
+         * このパスへのリクエストはハンドラーに渡さない。デフォルトはnullで、公開しない。
+         */
+        public Builder metricsPath(final String metricsPath) {
+            this.metricsPath = metricsPath;
+            return this;
+        }
+
+        /**
+         * Accept-Encodingに応じてエンティティをgzipかdeflateで圧縮するかどうか。デフォルトはfalse。
+         * {@link ResponseBody}で送るボディとContent-Encodingが付いたレスポンスは圧縮しない。
+         */
+        public Builder compression(final boolean compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * {@link Deflater}の圧縮レベル。デフォルトは{@link Deflater#DEFAULT_COMPRESSION}。
+         */
+        public Builder compressionLevel(final int compressionLevel) {
+            if ((compressionLevel < 0 || compressionLevel > 9)
+                    && compressionLevel != Deflater.DEFAULT_COMPRESSION) {
+                throw new IllegalArgumentException("invalid compressionLevel: " + compressionLevel);
+            }
+            this.compressionLevel = compressionLevel;
+            return this;
+        }
+
+        /**
+         * 圧縮するエンティティの最小バイト数。デフォルトは1024。
+         */
+        public Builder compressionMinSize(final int compressionMinSize) {
+            this.compressionMinSize = compressionMinSize;
+            return this;
+        }
+
+        /**
+         * 圧縮するContent-Typeの接頭辞。大文字と小文字は区別しない。
+         * デフォルトはtext/、application/json、application/javascript、application/xml、image/svg+xml。
+         */
+        public Builder compressibleContentTypes(final String... contentTypes) {
+            this.compressibleContentTypes = Arrays.asList(contentTypes.clone());
+            return this;
+        }
+
+        /**
+         * 圧縮した結果をI/O Workerごとに保持する合計の最大バイト数と、保持するエンティティの最大バイト数。
+         * 合計には元のエンティティと圧縮した結果の両方を数える。
+         * 保持するのはETagかLast-Modified、またはCache-Controlを持つレスポンスだけ。
+         * デフォルトは8MiBと1MiB。合計が0の場合は保持しない。
+         */
+        public Builder compressionCache(final long maxBytes, final int maxEntrySize) {
+            this.maxCompressionCacheBytes = maxBytes;
+            this.maxCompressionCacheEntrySize = maxEntrySize;
+            return this;
+        }
+
+        public HttpServer build() {
+            return new HttpServer(this);
+        }
+
+        private static int requirePositive(final int value, final String name) {
+            if (value <= 0) {
+                throw new IllegalArgumentException(name + " must be positive: " + value);
+            }
+            return value;
+        }
     }
 
     private interface Handler {
 
         void handle(SelectionKey key) throws IOException;
 
+        default void registered(final SelectionKey key) {
+        }
+
+        /**
+         * handleが例外をスローした。Workerを止めないように、このキーのチャネルだけを閉じる。
+         */
+        default void failed(final SelectionKey key, final RuntimeException e) {
+            logger.log(Level.WARNING, "exception in handle", e);
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (final IOException ex) {
+                logger.log(Level.FINE, "exception in close channel", ex);
+            }
+        }
+
+        /**
+         * サーバーが停止を始めた。
+         */
+        default void drain(final SelectionKey key) {
+        }
+
+        /**
+         * Workerが終了する。チャネルを閉じる。
+         */
+        default void shutdown(final SelectionKey key) {
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (final IOException e) {
+                logger.log(Level.FINE, "exception in close channel", e);
+            }
+        }
+
         default void handleWithUncheckedIOException(final SelectionKey key) {
             try {
                 handle(key);
@@ -77,77 +740,804 @@ public class HttpServer {
         }
     }
 
+    /**
+     * ownerがnullの場合は受け付け専用のスレッドで動き、接続をConnectionBalancerでWorkerへ渡す。
+     * そうでない場合はownerのセレクターで受け付け、そのままownerに登録する。
+     *
+     * <p>
+     * 接続数が上限に達するとOP_ACCEPTを外して受け付けを止め、接続が閉じたら再開する。
+     * ファイルディスクリプタが足りないなどでacceptに失敗した場合も閉じずに止め、少し待って再開する。
+     */
     private class AcceptHandler implements Handler {
 
+        private static final long ACCEPT_RETRY_MILLIS = 100;
+
+        private final Worker owner;
+        /**
+         * このハンドラーを登録したWorker。
+         */
+        private final Worker worker;
+        private final AtomicBoolean paused = new AtomicBoolean();
+        private SelectionKey key;
+
+        AcceptHandler(final Worker owner) {
+            this.owner = owner;
+            this.worker = owner != null ? owner : acceptWorker;
+            acceptHandlers.add(this);
+        }
+
+        @Override
+        public void registered(final SelectionKey key) {
+            this.key = key;
+        }
+
+        /**
+         * 受け付けを続けられるように、ServerSocketChannelは閉じずに受け付けを少し止める。
+         */
+        @Override
+        public void failed(final SelectionKey key, final RuntimeException e) {
+            logger.log(Level.WARNING, "exception in accept", e);
+            backOff();
+        }
+
         @Override
         public void handle(final SelectionKey key) throws IOException {
             final ServerSocketChannel ssc = (ServerSocketChannel) key.channel();
-            final SocketChannel sc = ssc.accept();
-            sc.setOption(StandardSocketOptions.SO_REUSEADDR, true);
-            sc.configureBlocking(false);
-            final int index = counter.getAndIncrement() % ioWorkers.size();
-            ioWorkers.get(index).register(sc, SelectionKey.OP_READ, new IOHandler());
+            SocketChannel sc;
+            while (true) {
+                if (connections.get() >= maxConnections) {
+                    pause();
+                    return;
+                }
+                try {
+                    if ((sc = ssc.accept()) == null) {
+                        return;
+                    }
+                } catch (final IOException e) {
+                    logger.log(Level.WARNING, "failed to accept connection", e);
+                    backOff();
+                    return;
+                }
+                try {
+                    sc.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                    sc.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+                    if (sendBufferSize > 0) {
+                        sc.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+                    }
+                    sc.configureBlocking(false);
+                } catch (final IOException e) {
+                    // 接続してすぐにリセットしたクライアントなど。この接続だけを閉じる
+                    logger.log(Level.FINE, "failed to configure accepted connection", e);
+                    try {
+                        sc.close();
+                    } catch (final IOException ex) {
+                        logger.log(Level.FINE, "exception in close connection", ex);
+                    }
+                    continue;
+                }
+                if (owner != null) {
+                    owner.registerNow(sc, SelectionKey.OP_READ, new IOHandler(owner));
+                } else {
+                    final Worker target = ioWorkers.get(connectionBalancer.select(ioWorkers));
+                    target.register(sc, SelectionKey.OP_READ, new IOHandler(target));
+                }
+            }
+        }
+
+        private void pause() {
+            logger.fine(() -> "too many connections, pausing accept");
+            paused.set(true);
+            key.interestOps(0);
+            // pausedを立てる前に接続が閉じていた場合はresumeが呼ばれないので、ここで再開する
+            if (connections.get() < maxConnections && paused.compareAndSet(true, false)) {
+                key.interestOps(SelectionKey.OP_ACCEPT);
+            }
+        }
+
+        /**
+         * OP_ACCEPTを外し、少し待ってから受け付けを再開する。このハンドラーのWorkerのスレッドから呼び出す。
+         */
+        private void backOff() {
+            if (key.isValid() == false) {
+                return;
+            }
+            key.interestOps(0);
+            worker.timers.schedule(() -> {
+                if (key.isValid() && paused.get() == false) {
+                    key.interestOps(SelectionKey.OP_ACCEPT);
+                }
+            }, ACCEPT_RETRY_MILLIS);
         }
+
+        /**
+         * 受け付けをやめてServerSocketChannelを閉じる。どのスレッドから呼び出してもよい。
+         */
+        void close() {
+            worker.execute(() -> shutdown(key));
+        }
+
+        /**
+         * 止めていた受け付けを再開する。どのスレッドから呼び出してもよい。
+         */
+        void resume() {
+            if (paused.get() && paused.compareAndSet(true, false)) {
+                worker.execute(() -> {
+                    if (key.isValid()) {
+                        key.interestOps(SelectionKey.OP_ACCEPT);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * 制限時間を確かめる間隔の上限。設定された制限時間のうち最も短いもの。
+     */
+    private long checkInterval() {
+        long interval = Long.MAX_VALUE;
+        for (final long timeout : new long[] { idleTimeout.toMillis(), headerReadTimeout,
+                bodyReadTimeout }) {
+            if (timeout > 0) {
+                interval = Math.min(interval, timeout);
+            }
+        }
+        return interval;
     }
 
     private class IOHandler implements Handler {
 
-        private HttpRequestParser parser = new HttpRequestParser();
-        private final ByteBuffer buf = ByteBuffer.allocate(8192);
-        private ByteBuffer responseEntity;
-        private HttpRequest request;
+        private static final int IDLE = 0;
+        private static final int HEAD = 1;
+        private static final int BODY = 2;
+
+        private final Worker worker;
+        private final HttpRequestParser parser;
+        private ByteBuffer buf;
+        private final Deque<Exchange> exchanges = new ArrayDeque<>();
+        private final ByteBuffer[] outbound = new ByteBuffer[16];
+        private Exchange pendingDispatch;
+        private boolean readSuspended;
+        /**
+         * 書き込み待ちのレスポンスが多すぎるので、次のリクエストを読まずにいる。
+         */
+        private boolean writeSuspended;
+        /**
+         * {@link #isInputPaused()}なので、OP_READを外して次のリクエストを読まずにいる。
+         */
+        private boolean inputPaused;
+        /**
+         * exchangesに積んだレスポンスヘッダーとエンティティのうち、まだ書き込んでいないバイト数。
+         */
+        private long pendingBytes;
+        private boolean inputShutdown;
+        private boolean lastRequestReceived;
+        private int requestCount;
+        private long lastActivity;
+        private TimingWheel.Timeout timer;
+        private int phase = IDLE;
+        private long phaseStart;
+        private boolean timedOut;
+        private boolean closed;
+
+        public IOHandler(final Worker worker) {
+            this.worker = worker;
+            worker.connections.incrementAndGet();
+            connections.incrementAndGet();
+            final long bodyBufferCapacity = dispatchMode.isInline() ? Long.MAX_VALUE
+                    : requestBodyBufferSize;
+            this.parser = new HttpRequestParser(maxBufferedEntitySize, bodyBufferCapacity,
+                    maxHeaderSize, maxBodySize, maxRequestLineLength, maxHeaderCount);
+        }
+
+        @Override
+        public void registered(final SelectionKey key) {
+            worker.metrics.acceptedConnections.increment();
+            lastActivity = worker.now;
+            phaseStart = worker.now;
+            final long timeout = idleTimeout.toMillis();
+            if (timeout > 0 || headerReadTimeout > 0 || bodyReadTimeout > 0) {
+                timer = worker.timers.schedule(() -> checkTimeouts(key),
+                        timeout > 0 ? timeout : checkInterval());
+            }
+            if (drained != null) {
+                // 受け付けを止める直前に受け付け、Workerのdrainより後に登録された接続
+                closeQuietly(key);
+            }
+        }
+
+        @Override
+        public void failed(final SelectionKey key, final RuntimeException e) {
+            logger.log(e instanceof UncheckedIOException ? Level.FINE : Level.WARNING,
+                    "exception in connection", e);
+            closeQuietly(key);
+        }
+
+        @Override
+        public void drain(final SelectionKey key) {
+            // 処理中のリクエストがあればレスポンスを書き終えたときに閉じる
+            if (exchanges.isEmpty() && phase == IDLE) {
+                closeQuietly(key);
+            }
+        }
+
+        @Override
+        public void shutdown(final SelectionKey key) {
+            closeQuietly(key);
+        }
 
         @Override
         public void handle(final SelectionKey key) throws IOException {
             final SocketChannel sc = (SocketChannel) key.channel();
+            lastActivity = worker.now;
             if (key.isReadable()) {
-                int i;
-                while ((i = sc.read(buf)) > 0) {
-                    buf.flip();
-                    final boolean parsed = parser.parse(buf);
-                    if (parsed) {
-                        request = parser.build();
-                        parser = new HttpRequestParser();
-                        final HttpResponse response = handle(request);
-                        final HttpResponseFormatter formatter = new HttpResponseFormatter();
-                        responseEntity = formatter.format(response);
-                        if ((key.interestOps() & SelectionKey.OP_WRITE) != SelectionKey.OP_WRITE) {
-                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                if (buf == null) {
+                    buf = worker.bufferPool.acquire();
+                }
+                int i = 0;
+                while (readSuspended == false
+                        && (isInputPaused() == false || parser.isBodyPending())
+                        && (i = sc.read(buf)) > 0) {
+                    worker.metrics.bytesRead.add(i);
+                    processInput(key);
+                }
+                if (isInputPaused() && parser.isBodyPending() == false && key.isValid()) {
+                    pauseInput(key);
+                }
+                if (buf.position() == 0) {
+                    worker.bufferPool.release(buf);
+                    buf = null;
+                }
+                if (i < 0) {
+                    inputShutdown = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    if (parser.isBodyPending()) {
+                        parser.body().abort(new EOFException("unexpected end of request body"));
+                    }
+                    if (exchanges.isEmpty()) {
+                        close(key);
+                        return;
+                    }
+                }
+            }
+            if (key.isValid() && key.isWritable()) {
+                write(key);
+            }
+        }
+
+        private void processInput(final SelectionKey key) {
+            buf.flip();
+            try {
+                while (buf.hasRemaining()) {
+                    if (isInputPaused() && parser.isBodyPending() == false) {
+                        pauseInput(key);
+                        return;
+                    }
+                    if (lastRequestReceived && parser.isBodyPending() == false) {
+                        buf.position(buf.limit());
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                        return;
+                    }
+                    if (parser.isBodyPending()) {
+                        if (parser.body().isFull()) {
+                            readSuspended = true;
+                            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                            return;
+                        }
+                        if (parser.transferBody(buf)) {
+                            parser.reset();
+                            if (pendingDispatch != null) {
+                                final Exchange exchange = pendingDispatch;
+                                pendingDispatch = null;
+                                dispatch(key, exchange);
+                            }
+                        }
+                    } else if (parser.parse(buf)) {
+                        final Exchange exchange = new Exchange(parser.build());
+                        worker.metrics.requests.increment();
+                        requestCount++;
+                        exchange.keepAlive = isKeepAliveRequested(exchange.request)
+                                && requestCount < maxRequestsPerConnection && drained == null;
+                        lastRequestReceived = exchange.keepAlive == false;
+                        exchanges.add(exchange);
+                        if (parser.isBodyPending() == false) {
+                            parser.reset();
+                            dispatch(key, exchange);
+                        } else if (dispatchMode.isInline()) {
+                            pendingDispatch = exchange;
+                        } else {
+                            exchange.request.body.setDrainListener(
+                                    () -> worker.execute(() -> resumeRead(key)));
+                            dispatch(key, exchange);
                         }
                     }
-                    buf.clear();
                 }
-                if (i < 0) {
-                    key.interestOps(key.interestOps() ^ SelectionKey.OP_READ);
+            } catch (final HttpRequestException e) {
+                buf.position(buf.limit());
+                reject(key, e);
+            } finally {
+                buf.compact();
+                updatePhase();
+            }
+        }
+
+        /**
+         * リクエストのどの部分を受け取っている途中かを記録し、その部分の制限時間を計り始める。
+         */
+        private void updatePhase() {
+            final int next;
+            if (parser.isBodyPending()) {
+                next = BODY;
+            } else if (lastRequestReceived) {
+                // 最後のリクエストを受け取った後の入力は読み捨てるので計らない
+                next = IDLE;
+            } else {
+                next = parser.isHeadPending() ? HEAD : parser.isEntityPending() ? BODY : IDLE;
+            }
+            if (next == phase) {
+                return;
+            }
+            phase = next;
+            phaseStart = worker.now;
+            final long timeout = next == HEAD ? headerReadTimeout
+                    : next == BODY ? bodyReadTimeout : 0;
+            if (timeout > 0 && timer != null) {
+                worker.timers.schedule(timer, timeout);
+            }
+        }
+
+        /**
+         * 不正なリクエストにエラーを返し、それ以降の入力は読み捨てる。
+         * ボディの途中で失敗した場合はボディを失敗させ、そのリクエストのレスポンスで接続を閉じる。
+         */
+        private void reject(final SelectionKey key, final HttpRequestException e) {
+            logger.log(Level.FINE, "rejected request", e);
+            worker.metrics.parseErrors.increment();
+            lastRequestReceived = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            final HttpResponse response = createStatusResponse(e.statusCode, e.reasonPhrase);
+            if (parser.isBodyPending()) {
+                final RequestBody body = parser.body();
+                body.abort(new IOException(e.getMessage()));
+                parser.reset();
+                final Exchange exchange = exchanges.peekLast();
+                if (exchange == null || exchange.request.body != body) {
+                    // レスポンスは書き終えているので、そのまま閉じる
+                    inputShutdown = true;
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                exchange.keepAlive = false;
+                if (pendingDispatch != null) {
+                    pendingDispatch = null;
+                    respond(key, exchange, response);
                 }
+                return;
             }
-            if (key.isWritable()) {
-                sc.write(responseEntity);
-                if (responseEntity.hasRemaining() == false) {
-                    key.interestOps(key.interestOps() ^ SelectionKey.OP_WRITE);
+            final Exchange exchange = new Exchange(new HttpRequest("", "", "HTTP/1.1",
+                    new HttpHeaders(), -1, null));
+            exchange.keepAlive = false;
+            exchanges.add(exchange);
+            respond(key, exchange, response);
+        }
 
-                    final List<String> connection = request.headers.getOrDefault("Connection",
-                            Collections.emptyList());
-                    if (connection.contains("keep-alive") == false) {
-                        key.cancel();
-                        sc.close();
+        private void resumeRead(final SelectionKey key) {
+            if (key.isValid() == false || readSuspended == false) {
+                return;
+            }
+            readSuspended = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            if (buf != null) {
+                processInput(key);
+            }
+        }
+
+        /**
+         * 書き込み待ちのレスポンスが多すぎるか、レスポンスを返し終えていないリクエストが多すぎるので、
+         * 次のリクエストを読んでディスパッチするのを待つべきならtrue。
+         * ディスパッチを別のスレッドで行う場合も、これで1つの接続が抱えるレスポンスの数を抑える。
+         */
+        private boolean isInputPaused() {
+            return writeSuspended || exchanges.size() >= maxPipelinedRequests;
+        }
+
+        private void pauseInput(final SelectionKey key) {
+            inputPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        private void write(final SelectionKey key) throws IOException {
+            writeExchanges(key);
+            if (writeSuspended && pendingBytes <= writeBufferLowWaterMark) {
+                writeSuspended = false;
+            }
+            if (inputPaused && isInputPaused() == false && key.isValid()) {
+                inputPaused = false;
+                if (readSuspended == false && inputShutdown == false) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+                if (buf != null) {
+                    processInput(key);
+                }
+            }
+        }
+
+        private void writeExchanges(final SelectionKey key) throws IOException {
+            final SocketChannel sc = (SocketChannel) key.channel();
+            Exchange exchange;
+            while ((exchange = exchanges.peek()) != null && exchange.responseHead != null) {
+                int count = 0;
+                int length = 0;
+                for (final Exchange e : exchanges) {
+                    if (e.responseHead == null || length + 2 > outbound.length) {
+                        break;
                     }
+                    outbound[length++] = e.responseHead;
+                    if (e.responseEntity != null) {
+                        outbound[length++] = e.responseEntity;
+                    }
+                    count++;
+                    if (e.responseBody != null || e.keepAlive == false) {
+                        break;
+                    }
+                }
+                final long bytes = sc.write(outbound, 0, length);
+                worker.metrics.bytesWritten.add(bytes);
+                pendingBytes -= bytes;
+                Arrays.fill(outbound, 0, length, null);
+                for (int i = 0; i < count; i++) {
+                    exchange = exchanges.peek();
+                    if (exchange.responseHead.hasRemaining() || (exchange.responseEntity != null
+                            && exchange.responseEntity.hasRemaining())) {
+                        return;
+                    }
+                    if (exchange.responseBody != null) {
+                        final ResponseBody body = exchange.responseBody;
+                        final long written = body.written;
+                        final ResponseBody.Progress progress = body.writeTo(sc);
+                        worker.metrics.bytesWritten.add(body.written - written);
+                        if (progress == ResponseBody.Progress.PARTIAL) {
+                            return;
+                        }
+                        if (progress == ResponseBody.Progress.WAITING) {
+                            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                            return;
+                        }
+                    }
+                    exchanges.poll();
+                    worker.metrics.latency.record(System.nanoTime() - exchange.startNanos);
+                    exchange.releaseHead(worker.bufferPool);
+                    final RequestBody body = exchange.request.body;
+                    if (body != null && body.isFinished() == false) {
+                        body.close();
+                    }
+                    if (exchange.keepAlive == false) {
+                        close(key);
+                        return;
+                    }
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (exchanges.isEmpty() && (inputShutdown || (drained != null && phase == IDLE))) {
+                close(key);
+            }
+        }
+
+        private void resumeWrite(final SelectionKey key, final Exchange exchange) {
+            if (key.isValid() && exchanges.peek() == exchange) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * アイドルタイムアウトと、ヘッダーとボディの受信の制限時間を確かめる。
+         * 1つのタイマーを次に確かめるべき時刻へ付け替えながら使う。
+         */
+        private void checkTimeouts(final SelectionKey key) {
+            if (key.isValid() == false) {
+                return;
+            }
+            if (timedOut) {
+                // 408を書き終えられないまま猶予が過ぎた
+                closeQuietly(key);
+                return;
+            }
+            final long now = worker.now;
+            long next = checkInterval();
+            if (readSuspended || inputPaused) {
+                // ハンドラーやレスポンスの書き込みを待っている間はクライアントの送信の遅さではない
+                phaseStart = now;
+            }
+            final long phaseTimeout = phase == HEAD ? headerReadTimeout
+                    : phase == BODY ? bodyReadTimeout : 0;
+            if (phaseTimeout > 0) {
+                final long remaining = phaseStart + phaseTimeout - now;
+                if (remaining <= 0) {
+                    expire(key, phaseTimeout);
+                    return;
+                }
+                next = Math.min(next, remaining);
+            }
+            final long timeout = idleTimeout.toMillis();
+            if (timeout > 0) {
+                final long idle = now - lastActivity;
+                if (exchanges.isEmpty() && phase == IDLE && idle >= timeout) {
+                    closeQuietly(key);
+                    return;
                 }
+                next = Math.min(next, exchanges.isEmpty() ? timeout - idle : timeout);
             }
+            worker.timers.schedule(timer, next);
         }
 
-        private HttpResponse handle(final HttpRequest request) {
+        private void expire(final SelectionKey key, final long timeout) {
+            final String part = phase == HEAD ? "request header" : "request body";
+            logger.fine(() -> part + " was not received within " + timeout + "ms");
+            timedOut = true;
+            if (buf != null) {
+                worker.bufferPool.release(buf);
+                buf = null;
+            }
+            reject(key, new HttpRequestException(408, "Request Timeout",
+                    part + " was not received within " + timeout + "ms"));
+            phase = IDLE;
+            worker.timers.schedule(timer, timeout);
+        }
+
+        private void closeQuietly(final SelectionKey key) {
             try {
-                return handler.handle(request);
+                close(key);
+            } catch (final IOException e) {
+                logger.log(Level.FINE, "exception in close connection", e);
+            }
+        }
+
+        private void close(final SelectionKey key) throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            worker.metrics.closedConnections.increment();
+            worker.connections.decrementAndGet();
+            if (connections.decrementAndGet() < maxConnections) {
+                acceptHandlers.forEach(AcceptHandler::resume);
+            }
+            checkDrained();
+            if (timer != null) {
+                worker.timers.cancel(timer);
+            }
+            if (parser.isBodyPending()) {
+                parser.body().abort(new ClosedChannelException());
+            }
+            for (final Exchange exchange : exchanges) {
+                cancelTimer(exchange);
+                exchange.releaseHead(worker.bufferPool);
+                if (exchange.responseBody != null) {
+                    exchange.responseBody.abort();
+                }
+            }
+            if (buf != null) {
+                worker.bufferPool.release(buf);
+                buf = null;
+            }
+            key.cancel();
+            key.channel().close();
+        }
+
+        private void dispatch(final SelectionKey key, final Exchange exchange) {
+            // メトリクスは過負荷のときこそ見たいので制限しない
+            final boolean limited = isMetricsRequest(exchange.request) == false;
+            if (limited && concurrencyLimiter.tryAcquire() == false) {
+                worker.metrics.shedRequests.increment();
+                respond(key, exchange, createServiceUnavailableResponse());
+                return;
+            }
+            if (dispatchMode.isInline()) {
+                handle(key, exchange, limited);
+                if (exchange.completed == false) {
+                    startTimer(key, exchange);
+                }
+                return;
+            }
+            startTimer(key, exchange);
+            try {
+                dispatchMode.execute(() -> handle(key, exchange, limited));
+            } catch (final RejectedExecutionException e) {
+                logger.log(Level.WARNING, "rejected to dispatch request", e);
+                cancelTimer(exchange);
+                if (limited) {
+                    concurrencyLimiter.onDropped();
+                }
+                worker.metrics.shedRequests.increment();
+                respond(key, exchange, createServiceUnavailableResponse());
+            }
+        }
+
+        private boolean isMetricsRequest(final HttpRequest request) {
+            return metricsHandler != null && metricsPath.equals(request.requestTarget);
+        }
+
+        private void respond(final SelectionKey key, final Exchange exchange,
+                final HttpResponse handlerResponse) {
+            if (key.isValid() == false) {
+                if (handlerResponse.body != null) {
+                    handlerResponse.body.abort();
+                }
+                return;
+            }
+            final HttpResponse response = worker.compressor != null
+                    ? worker.compressor.compress(exchange.request, handlerResponse)
+                    : handlerResponse;
+            final String httpVersion = exchange.request.httpVersion;
+            if (drained != null
+                    || response.headers.containsToken(HttpHeaders.CONNECTION, "close")) {
+                exchange.keepAlive = false;
+            }
+            if (response.body != null && response.body.contentLength() < 0
+                    && "HTTP/1.0".equals(httpVersion)) {
+                exchange.keepAlive = false;
+                response.body.disableChunkedEncoding();
+            }
+            final ByteBuffer pooled = worker.bufferPool.acquire();
+            final HttpResponseFormatter formatter = new HttpResponseFormatter(pooled);
+            exchange.responseHead = formatter.formatHead(response, httpVersion,
+                    exchange.keepAlive);
+            if (exchange.responseHead == pooled) {
+                exchange.pooledHead = pooled;
+            } else {
+                worker.bufferPool.release(pooled);
+            }
+            if (isBodyless(exchange.request, response.statusCode)) {
+                // HEADにはGETと同じ長さをヘッダーで返し、ボディは書き込まない
+                if (response.body != null) {
+                    response.body.abort();
+                }
+            } else {
+                exchange.responseEntity = response.entity != null ? response.entity.duplicate()
+                        : null;
+                exchange.responseBody = response.body;
+            }
+            if (exchange.responseBody != null) {
+                response.body.setReadyListener(
+                        () -> worker.execute(() -> resumeWrite(key, exchange)));
+                response.body.setWriteBufferWaterMarks(writeBufferLowWaterMark,
+                        writeBufferHighWaterMark);
+            }
+            pendingBytes += exchange.responseHead.remaining();
+            if (exchange.responseEntity != null) {
+                pendingBytes += exchange.responseEntity.remaining();
+            }
+            if (pendingBytes > writeBufferHighWaterMark && writeSuspended == false) {
+                // クライアントがレスポンスを読まないままリクエストを送り続けても溜め込まない
+                writeSuspended = true;
+                if (parser.isBodyPending() == false) {
+                    pauseInput(key);
+                }
+            }
+            if (exchanges.peek() == exchange
+                    && (key.interestOps() & SelectionKey.OP_WRITE) != SelectionKey.OP_WRITE) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * HEADのレスポンスと、1xx、204、304のレスポンスはボディを持たない。
+         */
+        private boolean isBodyless(final HttpRequest request, final int statusCode) {
+            return request.method.equals("HEAD") || (statusCode >= 100 && statusCode < 200)
+                    || statusCode == 204
+                    || statusCode == 304;
+        }
+
+        private boolean isKeepAliveRequested(final HttpRequest request) {
+            if ("HTTP/1.1".equals(request.httpVersion)) {
+                return request.headers.containsToken(HttpHeaders.CONNECTION, "close") == false;
+            }
+            return request.headers.containsToken(HttpHeaders.CONNECTION, "keep-alive");
+        }
+
+        /**
+         * ハンドラーを呼び出す。同期的なハンドラーはCompletionStageを作らずに呼び出す。
+         * レスポンスが返ったらWorkerのスレッドで{@link #complete}する。
+         */
+        private void handle(final SelectionKey key, final Exchange exchange,
+                final boolean limited) {
+            final HttpRequest request = exchange.request;
+            final long start = System.nanoTime();
+            if (limited == false || handler instanceof SynchronousHttpHandler) {
+                final HttpHandler h = limited ? ((SynchronousHttpHandler) handler).handler
+                        : metricsHandler;
+                HttpResponse response = null;
+                Throwable error = null;
+                try {
+                    response = h.handle(request);
+                } catch (final Exception e) {
+                    error = e;
+                } finally {
+                    if (limited) {
+                        concurrencyLimiter.onComplete(System.nanoTime() - start);
+                    }
+                }
+                complete(key, exchange, response, error);
+                return;
+            }
+            CompletionStage<HttpResponse> stage;
+            try {
+                stage = Objects.requireNonNull(handler.handleAsync(request), "stage");
             } catch (final Exception e) {
-                logger.log(Level.SEVERE, "exception in handle request", e);
-                return createErrorResponse(e);
+                stage = CompletableFuture.failedFuture(e);
+            }
+            exchange.stage = stage;
+            stage.whenComplete((response, error) -> {
+                concurrencyLimiter.onComplete(System.nanoTime() - start);
+                complete(key, exchange, response, error);
+            });
+        }
+
+        private void complete(final SelectionKey key, final Exchange exchange,
+                final HttpResponse response, final Throwable error) {
+            if (Thread.currentThread() != worker) {
+                worker.execute(() -> complete(key, exchange, response, error));
+                return;
+            }
+            if (exchange.completed) {
+                // 既に504を返している
+                if (response != null && response.body != null) {
+                    response.body.abort();
+                }
+                return;
+            }
+            exchange.completed = true;
+            cancelTimer(exchange);
+            if (error == null && response != null) {
+                respond(key, exchange, response);
+                return;
+            }
+            final Throwable e = error == null ? new NullPointerException("response is null")
+                    : error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause()
+                            : error;
+            worker.metrics.handlerExceptions.increment();
+            logger.log(Level.SEVERE, "exception in handle request", e);
+            respond(key, exchange, createErrorResponse(e));
+        }
+
+        private void startTimer(final SelectionKey key, final Exchange exchange) {
+            if (requestTimeout > 0) {
+                exchange.timer = worker.timers.schedule(() -> timeout(key, exchange),
+                        requestTimeout);
             }
         }
 
-        private HttpResponse createErrorResponse(final Exception e) {
-            final Map<String, List<String>> headers = new HashMap<>();
-            headers.put("Content-Type", Arrays.asList("text/plain"));
+        private void cancelTimer(final Exchange exchange) {
+            if (exchange.timer != null) {
+                worker.timers.cancel(exchange.timer);
+                exchange.timer = null;
+            }
+        }
+
+        private void timeout(final SelectionKey key, final Exchange exchange) {
+            exchange.timer = null;
+            if (exchange.completed || key.isValid() == false) {
+                return;
+            }
+            logger.fine(() -> "request was not handled within " + requestTimeout + "ms: "
+                    + exchange.request.method + " " + exchange.request.requestTarget);
+            exchange.completed = true;
+            final CompletionStage<HttpResponse> stage = exchange.stage;
+            if (stage != null) {
+                try {
+                    // 待っているハンドラーへ結果が不要になったことを伝える
+                    stage.toCompletableFuture().cancel(false);
+                } catch (final UnsupportedOperationException e) {
+                    logger.log(Level.FINEST, "stage cannot be cancelled", e);
+                }
+            }
+            respond(key, exchange, createStatusResponse(504, "Gateway Timeout"));
+        }
+
+        private HttpResponse createErrorResponse(final Throwable e) {
+            final HttpHeaders headers = new HttpHeaders();
+            headers.add(HttpHeaders.CONTENT_TYPE, "text/plain");
             final ByteArrayOutputStream baos = new ByteArrayOutputStream();
             try (PrintStream out = new PrintStream(baos)) {
                 e.printStackTrace(out);
@@ -155,16 +1545,74 @@ public class HttpServer {
             final ByteBuffer entity = ByteBuffer.wrap(baos.toByteArray());
             return new HttpResponse(500, "Internal Server Error", headers, entity);
         }
+
+        private HttpResponse createServiceUnavailableResponse() {
+            return new HttpResponse(503, "Service Unavailable", serviceUnavailableHeaders,
+                    SERVICE_UNAVAILABLE);
+        }
+
+        private HttpResponse createStatusResponse(final int statusCode,
+                final String reasonPhrase) {
+            final HttpHeaders headers = new HttpHeaders();
+            headers.add(HttpHeaders.CONTENT_TYPE, "text/plain");
+            final ByteBuffer entity = ByteBuffer.wrap(reasonPhrase.getBytes());
+            return new HttpResponse(statusCode, reasonPhrase, headers, entity);
+        }
     }
 
-    private static class Worker extends Thread {
+    private static class Exchange {
+
+        final HttpRequest request;
+        final long startNanos = System.nanoTime();
+        ByteBuffer responseHead;
+        ByteBuffer pooledHead;
+        ByteBuffer responseEntity;
+        ResponseBody responseBody;
+        boolean keepAlive;
+        /**
+         * レスポンスが決まった。Workerのスレッドだけから読み書きする。
+         */
+        boolean completed;
+        TimingWheel.Timeout timer;
+        volatile CompletionStage<HttpResponse> stage;
+
+        Exchange(final HttpRequest request) {
+            this.request = request;
+        }
+
+        void releaseHead(final BufferPool bufferPool) {
+            if (pooledHead != null) {
+                bufferPool.release(pooledHead);
+                pooledHead = null;
+            }
+        }
+    }
+
+    private static class Worker extends Thread implements ConnectionBalancer.WorkerLoad {
+
+        private static final long BUSY_WINDOW_NANOS = 100_000_000L;
 
         private final Selector selector;
-        private final BlockingQueue<IOAction> queue = new LinkedBlockingQueue<>();
+        private BufferPool bufferPool;
+        private ResponseCompressor compressor;
+        private final TimingWheel timers;
+        private long now = currentTimeMillis();
+        private final MpscQueue<Runnable> queue = new MpscQueue<>();
+        private final AtomicBoolean needsWakeup = new AtomicBoolean();
         private final AtomicBoolean running = new AtomicBoolean(true);
+        private final AtomicInteger connections = new AtomicInteger();
+        private final WorkerMetrics metrics;
+        private volatile double busyRatio;
+        private volatile long windowStart = System.nanoTime();
+        private volatile boolean selecting;
+        private long busyNanos;
+        private boolean processing;
+        private long processStart;
 
-        public Worker(final IOSupplier<Selector> selector) {
+        public Worker(final String name, final IOSupplier<Selector> selector) {
             this.selector = selector.getWithUncheckedIOException();
+            this.metrics = new WorkerMetrics(name, connections);
+            this.timers = new TimingWheel(100, 512, now);
         }
 
         @Override
@@ -172,19 +1620,44 @@ public class HttpServer {
             logger.info(() -> getName() + " begin");
             try {
                 while (running.get()) {
-                    selector.select(key -> {
-                        final var h = (Handler) key.attachment();
-                        h.handleWithUncheckedIOException(key);
-                    });
-                    IOAction task;
+                    final long timeout = timers.isEmpty() ? 0 : timers.tickMillis();
+                    processing = false;
+                    selecting = true;
+                    needsWakeup.set(true);
+                    // needsWakeupを立てた後にキューを確認し、その間に積まれたタスクを取りこぼさない
+                    if (queue.isEmpty()) {
+                        selector.select(this::handle, timeout);
+                    } else {
+                        selector.selectNow(this::handle);
+                    }
+                    needsWakeup.set(false);
+                    selecting = false;
+                    metrics.selectorLoops.increment();
+                    final long selected = System.nanoTime();
+                    now = selected / 1_000_000;
+                    Runnable task;
                     while ((task = queue.poll()) != null) {
-                        task.act();
+                        try {
+                            task.run();
+                        } catch (final RuntimeException e) {
+                            logger.log(Level.SEVERE, "exception in task", e);
+                        }
                     }
+                    timers.advance(now);
+                    recordBusy(processing ? processStart : selected, System.nanoTime());
                 }
                 logger.info(() -> getName() + " end");
             } catch (final Exception e) {
                 logger.log(Level.SEVERE, "exception in run", e);
             } finally {
+                if (selector.isOpen()) {
+                    for (final SelectionKey key : selector.keys()) {
+                        ((Handler) key.attachment()).shutdown(key);
+                    }
+                }
+                if (compressor != null) {
+                    compressor.end();
+                }
                 try {
                     selector.close();
                 } catch (final IOException e) {
@@ -193,10 +1666,93 @@ public class HttpServer {
             }
         }
 
+        private void handle(final SelectionKey key) {
+            if (processing == false) {
+                processing = true;
+                processStart = System.nanoTime();
+            }
+            final var h = (Handler) key.attachment();
+            try {
+                h.handleWithUncheckedIOException(key);
+            } catch (final RuntimeException e) {
+                h.failed(key, e);
+            }
+        }
+
         public void register(final AbstractSelectableChannel channel, final int op,
                 final Handler handler) {
-            queue.add(() -> channel.register(selector, op, handler));
-            selector.wakeup();
+            execute(() -> {
+                try {
+                    registerNow(channel, op, handler);
+                } catch (final ClosedChannelException e) {
+                    logger.log(Level.FINE, "channel closed before registration", e);
+                }
+            });
+        }
+
+        /**
+         * このWorkerのスレッドから呼び出す。
+         */
+        void registerNow(final AbstractSelectableChannel channel, final int op,
+                final Handler handler) throws ClosedChannelException {
+            // selectの中から呼ばれるとnowが古いままなので、アイドル判定のために更新しておく
+            now = currentTimeMillis();
+            handler.registered(channel.register(selector, op, handler));
+        }
+
+        /**
+         * taskをこのWorkerのスレッドで実行する。どのスレッドから呼び出してもよい。
+         * セレクターで待機している場合だけ起こし、連続して積まれたタスクでは1回にまとめる。
+         */
+        public void execute(final Runnable task) {
+            queue.offer(task);
+            if (needsWakeup.compareAndSet(true, false)) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public int connections() {
+            return connections.get();
+        }
+
+        /**
+         * セレクターで長く待機していて計測が止まっている場合は0、
+         * 処理から長く戻ってこない場合は1とみなす。
+         */
+        @Override
+        public double busyRatio() {
+            if (System.nanoTime() - windowStart > BUSY_WINDOW_NANOS * 10) {
+                return selecting ? 0 : 1;
+            }
+            return busyRatio;
+        }
+
+        private void recordBusy(final long start, final long end) {
+            busyNanos += end - start;
+            final long elapsed = end - windowStart;
+            if (elapsed >= BUSY_WINDOW_NANOS) {
+                busyRatio = (busyRatio + Math.min(1.0, (double) busyNanos / elapsed)) / 2;
+                busyNanos = 0;
+                windowStart = end;
+            }
+        }
+
+        private static long currentTimeMillis() {
+            return System.nanoTime() / 1_000_000;
+        }
+
+        /**
+         * 登録されている全てのキーに停止を始めたことを伝える。
+         */
+        public void drain() {
+            execute(() -> {
+                for (final SelectionKey key : selector.keys()) {
+                    if (key.isValid()) {
+                        ((Handler) key.attachment()).drain(key);
+                    }
+                }
+            });
         }
 
         public void shutdown() {
@@ -207,11 +1763,6 @@ public class HttpServer {
         }
     }
 
-    @FunctionalInterface
-    private interface IOAction {
-        void act() throws IOException;
-    }
-
     @FunctionalInterface
     private interface IOSupplier<T> {
 
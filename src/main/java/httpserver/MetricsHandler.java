@@ -0,0 +1,83 @@
+package httpserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * 計測値をPrometheusのテキスト形式で返すハンドラー。
+ */
+public class MetricsHandler implements HttpHandler {
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final ServerMetrics metrics;
+
+    public MetricsHandler(final ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public HttpResponse handle(final HttpRequest request) throws Exception {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaders.CONTENT_TYPE, "text/plain; version=0.0.4; charset=UTF-8");
+        headers.add(HttpHeaders.CACHE_CONTROL, "no-cache");
+        final byte[] bytes = format(metrics).getBytes(StandardCharsets.UTF_8);
+        return new HttpResponse(200, "OK", headers, ByteBuffer.wrap(bytes));
+    }
+
+    static String format(final ServerMetrics metrics) {
+        final List<WorkerMetrics> workers = metrics.workers();
+        final StringBuilder buf = new StringBuilder();
+        metric(buf, workers, "httpserver_connections_active", "gauge",
+                "Open connections.", WorkerMetrics::activeConnections);
+        metric(buf, workers, "httpserver_connections_accepted_total", "counter",
+                "Accepted connections.", WorkerMetrics::acceptedConnections);
+        metric(buf, workers, "httpserver_connections_closed_total", "counter",
+                "Closed connections.", WorkerMetrics::closedConnections);
+        metric(buf, workers, "httpserver_requests_total", "counter",
+                "Received requests.", WorkerMetrics::requests);
+        metric(buf, workers, "httpserver_read_bytes_total", "counter",
+                "Bytes read from sockets.", WorkerMetrics::bytesRead);
+        metric(buf, workers, "httpserver_written_bytes_total", "counter",
+                "Bytes written to sockets.", WorkerMetrics::bytesWritten);
+        metric(buf, workers, "httpserver_parse_errors_total", "counter",
+                "Rejected malformed or oversized requests.", WorkerMetrics::parseErrors);
+        metric(buf, workers, "httpserver_handler_exceptions_total", "counter",
+                "Exceptions thrown by handlers.", WorkerMetrics::handlerExceptions);
+        metric(buf, workers, "httpserver_shed_requests_total", "counter",
+                "Requests rejected with 503 due to overload.", WorkerMetrics::shedRequests);
+        metric(buf, workers, "httpserver_selector_loops_total", "counter",
+                "Selector loop iterations.", WorkerMetrics::selectorLoops);
+
+        final String name = "httpserver_request_duration_seconds";
+        buf.append("# HELP ").append(name)
+                .append(" Time from reading a request to writing its response.\n");
+        buf.append("# TYPE ").append(name).append(" summary\n");
+        for (final WorkerMetrics worker : workers) {
+            final LatencyHistogram latency = worker.latency();
+            for (final double quantile : QUANTILES) {
+                buf.append(name).append("{worker=\"").append(worker.name())
+                        .append("\",quantile=\"").append(quantile).append("\"} ")
+                        .append(latency.valueAtPercentile(quantile * 100) / 1e9).append('\n');
+            }
+            buf.append(name).append("_sum{worker=\"").append(worker.name()).append("\"} ")
+                    .append(latency.sum() / 1e9).append('\n');
+            buf.append(name).append("_count{worker=\"").append(worker.name()).append("\"} ")
+                    .append(latency.count()).append('\n');
+        }
+        return buf.toString();
+    }
+
+    private static void metric(final StringBuilder buf, final List<WorkerMetrics> workers,
+            final String name, final String type, final String help,
+            final ToLongFunction<WorkerMetrics> value) {
+        buf.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        buf.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        for (final WorkerMetrics worker : workers) {
+            buf.append(name).append("{worker=\"").append(worker.name()).append("\"} ")
+                    .append(value.applyAsLong(worker)).append('\n');
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package httpserver;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * 複数のスレッドから追加し、1つのスレッドだけが取り出す無制限のキュー。
+ *
+ * <p>
+ * 追加はtailの付け替え1回で済み、ロックを取らない。
+ * 追加したスレッドがnextを繋ぐまでの間は、取り出し側からは後続の要素が見えないことがある。
+ */
+final class MpscQueue<E> {
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<MpscQueue, Node> TAIL =
+            AtomicReferenceFieldUpdater.newUpdater(MpscQueue.class, Node.class, "tail");
+
+    private volatile Node<E> tail;
+    private Node<E> head;
+
+    MpscQueue() {
+        final Node<E> stub = new Node<>(null);
+        head = stub;
+        tail = stub;
+    }
+
+    /**
+     * どのスレッドから呼び出してもよい。
+     */
+    void offer(final E value) {
+        final Node<E> node = new Node<>(value);
+        @SuppressWarnings("unchecked")
+        final Node<E> prev = TAIL.getAndSet(this, node);
+        prev.next = node;
+    }
+
+    /**
+     * 取り出し側のスレッドから呼び出す。空の場合はnull。
+     */
+    E poll() {
+        final Node<E> next = head.next;
+        if (next == null) {
+            return null;
+        }
+        final E value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    /**
+     * 取り出し側のスレッドから呼び出す。
+     */
+    boolean isEmpty() {
+        return head == tail;
+    }
+
+    private static final class Node<E> {
+
+        E value;
+        volatile Node<E> next;
+
+        Node(final E value) {
+            this.value = value;
+        }
+    }
+}
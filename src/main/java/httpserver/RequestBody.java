@@ -0,0 +1,184 @@
+package httpserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * リクエストボディを少しずつ読み込むためのチャネル。
+ *
+ * <p>
+ * ソケットから読み込んだバイト列はセレクタースレッドからこのチャネルへ渡され、
+ * ハンドラーは{@link #read(ByteBuffer)}でそれを消費する。
+ * 溜まっているバイト数がcapacityに達するとソケットの読み込みは止められ、
+ * ハンドラーが半分以上を消費すると再開される。
+ */
+public class RequestBody implements ReadableByteChannel {
+
+    private final long contentLength;
+    private final long capacity;
+    private final Deque<ByteBuffer> chunks = new ArrayDeque<>();
+    private long buffered;
+    private boolean finished;
+    private boolean open = true;
+    private IOException failure;
+    private boolean drainRequested;
+    private Runnable drainListener;
+
+    RequestBody(final long contentLength, final long capacity) {
+        this.contentLength = contentLength;
+        this.capacity = capacity;
+    }
+
+    /**
+     * ボディのないリクエストのための、すぐに終わりに達するボディ。
+     */
+    public static RequestBody empty() {
+        final RequestBody body = new RequestBody(0, Long.MAX_VALUE);
+        body.finished = true;
+        return body;
+    }
+
+    /**
+     * 読み込み済みのエンティティをボディとして扱う。
+     */
+    public static RequestBody of(final ByteBuffer entity) {
+        final RequestBody body = new RequestBody(entity.remaining(), Long.MAX_VALUE);
+        body.chunks.add(entity.duplicate());
+        body.buffered = entity.remaining();
+        body.finished = true;
+        return body;
+    }
+
+    /**
+     * Content-Lengthで宣言されたボディの長さ。分からない場合は-1。
+     */
+    public long contentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        final Runnable listener;
+        final int read;
+        synchronized (this) {
+            while (open && chunks.isEmpty() && finished == false && failure == null) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (open == false) {
+                throw new ClosedChannelException();
+            }
+            if (chunks.isEmpty()) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return -1;
+            }
+            read = transfer(dst);
+            listener = takeDrainListener();
+        }
+        if (listener != null) {
+            listener.run();
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * 読み込まずに残ったボディは破棄される。
+     */
+    @Override
+    public void close() {
+        final Runnable listener;
+        synchronized (this) {
+            open = false;
+            chunks.clear();
+            buffered = 0;
+            listener = takeDrainListener();
+            notifyAll();
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    synchronized void offer(final ByteBuffer src) {
+        if (open == false) {
+            src.position(src.limit());
+            return;
+        }
+        final ByteBuffer chunk = ByteBuffer.allocate(src.remaining());
+        chunk.put(src);
+        chunk.flip();
+        chunks.add(chunk);
+        buffered += chunk.remaining();
+        notifyAll();
+    }
+
+    synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    synchronized void abort(final IOException e) {
+        if (finished == false) {
+            failure = e;
+            notifyAll();
+        }
+    }
+
+    synchronized boolean isFinished() {
+        return finished;
+    }
+
+    synchronized boolean isFull() {
+        if (buffered < capacity) {
+            return false;
+        }
+        drainRequested = true;
+        return true;
+    }
+
+    synchronized void setDrainListener(final Runnable drainListener) {
+        this.drainListener = drainListener;
+    }
+
+    private int transfer(final ByteBuffer dst) {
+        int read = 0;
+        while (dst.hasRemaining() && chunks.isEmpty() == false) {
+            final ByteBuffer chunk = chunks.peek();
+            final int length = Math.min(dst.remaining(), chunk.remaining());
+            final ByteBuffer slice = chunk.duplicate();
+            slice.limit(slice.position() + length);
+            dst.put(slice);
+            chunk.position(chunk.position() + length);
+            if (chunk.hasRemaining() == false) {
+                chunks.poll();
+            }
+            read += length;
+        }
+        buffered -= read;
+        return read;
+    }
+
+    private Runnable takeDrainListener() {
+        if (drainRequested && buffered <= capacity / 2) {
+            drainRequested = false;
+            return drainListener;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,61 @@
+package httpserver;
+
+import java.io.IOException;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * ヒープ上のByteBuffer以外で送るレスポンスボディ。
+ *
+ * <p>
+ * 書き込みはセレクタースレッドから行われる。
+ */
+public abstract class ResponseBody {
+
+    enum Progress {
+        DONE, PARTIAL, WAITING
+    }
+
+    /**
+     * writeToでソケットへ書き込んだバイト数の合計。メトリクスに使う。
+     */
+    long written;
+
+    ResponseBody() {
+    }
+
+    /**
+     * ボディの長さ。事前に分からない場合は-1でchunkedで送られる。
+     */
+    public abstract long contentLength();
+
+    /**
+     * 書き込めるだけ書き込む。全て書き終えたらDONE、ソケットのバッファが一杯になったらPARTIAL、
+     * 送るデータがまだ用意されていなければWAITINGを返す。
+     */
+    abstract Progress writeTo(GatheringByteChannel channel) throws IOException;
+
+    /**
+     * WAITINGを返した後に送るデータが用意されたら呼び出されるリスナーを設定する。
+     */
+    void setReadyListener(final Runnable listener) {
+    }
+
+    /**
+     * サーバーに設定された書き込み待ちのバイト数の目安を受け取る。
+     */
+    void setWriteBufferWaterMarks(final int low, final int high) {
+    }
+
+    /**
+     * 長さの分からないボディをchunkedにせず、そのまま送るようにする。
+     * 接続を閉じることでボディの終わりを示すHTTP/1.0のクライアント向け。
+     */
+    void disableChunkedEncoding() {
+    }
+
+    /**
+     * 接続が閉じられて最後まで送れなかったときに呼び出される。
+     */
+    void abort() {
+    }
+}
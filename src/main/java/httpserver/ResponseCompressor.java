@@ -0,0 +1,316 @@
+package httpserver;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Accept-Encodingに応じてレスポンスのエンティティをgzipかdeflateで圧縮する。
+ *
+ * <p>
+ * I/O Workerごとに1つ作り、そのWorkerのスレッドだけから使う。
+ * Deflaterはネイティブのメモリを確保するため、レスポンスごとに作らずresetして使い回す。
+ * 同じ内容のエンティティを繰り返し圧縮しないように、圧縮した結果を内容をキーにしてLRUで保持する。
+ * 保持するのはETagかLast-Modified、またはCache-Controlを持つ、繰り返し返されると見込めるレスポンスだけで、
+ * 元のエンティティと圧縮した結果の合計のバイト数で上限を設ける。
+ * 圧縮したレスポンスの強いETagは、元のエンティティと区別するため弱いETagにする。
+ * {@link ResponseBody}で送るボディは圧縮しない。
+ */
+final class ResponseCompressor {
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0,
+            0, 0, 0, (byte) 0xff };
+    private static final int SCRATCH_SIZE = 8192;
+    private static final int MAX_RETAINED_SCRATCH_SIZE = 1024 * 1024;
+    /**
+     * 圧縮しても小さくならなかったことを表すキャッシュの値。
+     */
+    private static final ByteBuffer NOT_SMALLER = ByteBuffer.allocate(0);
+
+    private final int minSize;
+    private final List<String> contentTypes;
+    private final long maxCacheBytes;
+    private final long maxCachedSize;
+    private final Deflater gzip;
+    private final Deflater deflate;
+    private final CRC32 crc = new CRC32();
+    private final Map<Key, ByteBuffer> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cacheBytes;
+    private byte[] scratch = new byte[SCRATCH_SIZE];
+
+    ResponseCompressor(final int level, final int minSize, final List<String> contentTypes,
+            final long maxCacheBytes, final int maxCachedSize) {
+        this.minSize = minSize;
+        this.contentTypes = contentTypes;
+        this.maxCacheBytes = maxCacheBytes;
+        this.maxCachedSize = Math.min(maxCachedSize, maxCacheBytes);
+        this.gzip = new Deflater(level, true);
+        this.deflate = new Deflater(level);
+    }
+
+    /**
+     * 圧縮できる場合は圧縮したエンティティとContent-Encodingを持つレスポンスを返す。
+     * 圧縮の対象であればクライアントが受け付けなくてもVaryを付ける。
+     */
+    HttpResponse compress(final HttpRequest request, final HttpResponse response) {
+        final ByteBuffer entity = response.entity;
+        if (entity == null || entity.remaining() < minSize || isCompressible(response) == false) {
+            return response;
+        }
+        final HttpHeaders headers = response.headers.copy();
+        if (containsToken(response, HttpHeaders.VARY, "Accept-Encoding") == false) {
+            headers.add(HttpHeaders.VARY, "Accept-Encoding");
+        }
+        final String coding = negotiate(request.headers);
+        if (coding == null) {
+            return response.withEntity(headers, entity);
+        }
+        final boolean cacheable = entity.remaining() <= maxCachedSize && isCacheable(response);
+        ByteBuffer compressed = cacheable ? cache.get(new Key(coding, entity.duplicate())) : null;
+        if (compressed == null) {
+            compressed = deflate(entity, GZIP.equals(coding));
+            if (cacheable) {
+                store(coding, entity, compressed);
+            }
+        }
+        if (compressed == NOT_SMALLER) {
+            return response.withEntity(headers, entity);
+        }
+        headers.add(HttpHeaders.CONTENT_ENCODING, coding);
+        final String etag = get(response, HttpHeaders.ETAG);
+        if (etag == null || etag.startsWith("W/")) {
+            return response.withEntity(headers, compressed);
+        }
+        // 圧縮したエンティティは元のエンティティとバイト単位では一致しないので、強いETagを弱める
+        final String weak = "W/" + etag;
+        if (headers.contains(HttpHeaders.ETAG)) {
+            headers.set(HttpHeaders.ETAG, weak);
+            return response.withEntity(headers, compressed);
+        }
+        final HttpHeaders merged = new HttpHeaders();
+        final HttpHeaders block = response.headerBlock.headers();
+        for (int i = 0; i < block.size(); i++) {
+            final String name = block.name(i);
+            merged.add(name, name.equalsIgnoreCase(HttpHeaders.ETAG) ? weak : block.value(i));
+        }
+        for (int i = 0; i < headers.size(); i++) {
+            merged.add(headers.name(i), headers.value(i));
+        }
+        return new HttpResponse(response.statusCode, response.reasonPhrase, merged, compressed);
+    }
+
+    /**
+     * 繰り返し返されると見込めるレスポンスかどうか。動的に作られるボディで保持する領域を埋めないようにする。
+     */
+    private static boolean isCacheable(final HttpResponse response) {
+        if (containsToken(response, HttpHeaders.CACHE_CONTROL, "no-store")
+                || containsToken(response, HttpHeaders.CACHE_CONTROL, "private")) {
+            return false;
+        }
+        return get(response, HttpHeaders.ETAG) != null
+                || get(response, HttpHeaders.LAST_MODIFIED) != null
+                || get(response, HttpHeaders.CACHE_CONTROL) != null;
+    }
+
+    private void store(final String coding, final ByteBuffer entity,
+            final ByteBuffer compressed) {
+        final ByteBuffer copy = ByteBuffer.allocate(entity.remaining());
+        copy.put(entity.duplicate()).flip();
+        final ByteBuffer old = cache.put(new Key(coding, copy), compressed);
+        cacheBytes += copy.capacity() + compressed.capacity();
+        if (old != null) {
+            cacheBytes -= copy.capacity() + old.capacity();
+        }
+        final Iterator<Map.Entry<Key, ByteBuffer>> it = cache.entrySet().iterator();
+        while (cacheBytes > maxCacheBytes && it.hasNext()) {
+            final Map.Entry<Key, ByteBuffer> eldest = it.next();
+            cacheBytes -= eldest.getKey().content.capacity() + eldest.getValue().capacity();
+            it.remove();
+        }
+    }
+
+    /**
+     * 保持している元のエンティティと圧縮した結果の合計のバイト数。
+     */
+    long cacheBytes() {
+        return cacheBytes;
+    }
+
+    private boolean isCompressible(final HttpResponse response) {
+        final int status = response.statusCode;
+        if (status < 200 || status == 204 || status == 206 || status == 304) {
+            return false;
+        }
+        if (get(response, HttpHeaders.CONTENT_ENCODING) != null
+                || containsToken(response, HttpHeaders.CACHE_CONTROL, "no-transform")) {
+            return false;
+        }
+        final String contentType = get(response, HttpHeaders.CONTENT_TYPE);
+        if (contentType == null) {
+            return false;
+        }
+        for (final String prefix : contentTypes) {
+            if (contentType.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ByteBuffer deflate(final ByteBuffer entity, final boolean gzip) {
+        final Deflater deflater = gzip ? this.gzip : this.deflate;
+        deflater.reset();
+        deflater.setInput(entity.duplicate());
+        deflater.finish();
+        int length = 0;
+        if (gzip) {
+            System.arraycopy(GZIP_HEADER, 0, scratch, 0, GZIP_HEADER.length);
+            length = GZIP_HEADER.length;
+        }
+        while (deflater.finished() == false) {
+            if (length == scratch.length) {
+                scratch = Arrays.copyOf(scratch, scratch.length * 2);
+            }
+            length += deflater.deflate(scratch, length, scratch.length - length);
+        }
+        if (gzip) {
+            if (length + 8 > scratch.length) {
+                scratch = Arrays.copyOf(scratch, length + 8);
+            }
+            crc.reset();
+            crc.update(entity.duplicate());
+            length = putIntLE(scratch, length, (int) crc.getValue());
+            length = putIntLE(scratch, length, entity.remaining());
+        }
+        final ByteBuffer compressed = length < entity.remaining()
+                ? ByteBuffer.wrap(Arrays.copyOf(scratch, length)).asReadOnlyBuffer()
+                : NOT_SMALLER;
+        if (scratch.length > MAX_RETAINED_SCRATCH_SIZE) {
+            scratch = new byte[SCRATCH_SIZE];
+        }
+        return compressed;
+    }
+
+    private static int putIntLE(final byte[] bs, final int offset, final int value) {
+        bs[offset] = (byte) value;
+        bs[offset + 1] = (byte) (value >>> 8);
+        bs[offset + 2] = (byte) (value >>> 16);
+        bs[offset + 3] = (byte) (value >>> 24);
+        return offset + 4;
+    }
+
+    /**
+     * Deflaterのネイティブのメモリを解放する。Workerの終了時に呼び出す。
+     */
+    void end() {
+        gzip.end();
+        deflate.end();
+        cache.clear();
+        cacheBytes = 0;
+    }
+
+    /**
+     * Accept-Encodingから使うコーディングを選ぶ。gzipを優先し、どちらも受け付けない場合はnull。
+     */
+    static String negotiate(final HttpHeaders requestHeaders) {
+        if (accepts(requestHeaders, GZIP)) {
+            return GZIP;
+        }
+        if (accepts(requestHeaders, DEFLATE)) {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * Accept-Encodingがcodingを0より大きいqで受け付けているかどうか。
+     * 明示されていない場合は{@code *}のqに従う。
+     */
+    static boolean accepts(final HttpHeaders requestHeaders, final String coding) {
+        double q = -1;
+        double wildcard = -1;
+        for (final String value : requestHeaders.getAll(HttpHeaders.ACCEPT_ENCODING)) {
+            for (final String element : value.split(",")) {
+                final int semicolon = element.indexOf(';');
+                final String name = (semicolon < 0 ? element : element.substring(0, semicolon))
+                        .trim();
+                if (name.equalsIgnoreCase(coding)) {
+                    q = quality(element, semicolon);
+                } else if (name.equals("*")) {
+                    wildcard = quality(element, semicolon);
+                }
+            }
+        }
+        return (q >= 0 ? q : wildcard) > 0;
+    }
+
+    private static double quality(final String element, final int semicolon) {
+        if (semicolon < 0) {
+            return 1;
+        }
+        for (final String param : element.substring(semicolon + 1).split(";")) {
+            final String p = param.trim();
+            if (p.startsWith("q=") || p.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(p.substring(2));
+                } catch (final NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    private static String get(final HttpResponse response, final String name) {
+        final String value = response.headers.get(name);
+        if (value == null && response.headerBlock != null) {
+            return response.headerBlock.headers().get(name);
+        }
+        return value;
+    }
+
+    private static boolean containsToken(final HttpResponse response, final String name,
+            final String token) {
+        return response.headers.containsToken(name, token) || (response.headerBlock != null
+                && response.headerBlock.headers().containsToken(name, token));
+    }
+
+    /**
+     * コーディングとエンティティの内容によるキー。ハッシュ値は作るときに一度だけ計算する。
+     */
+    private static final class Key {
+
+        final String coding;
+        final ByteBuffer content;
+        final int hash;
+
+        Key(final String coding, final ByteBuffer content) {
+            this.coding = coding;
+            this.content = content;
+            this.hash = coding.hashCode() * 31 + content.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj instanceof Key == false) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return hash == other.hash && coding.equals(other.coding)
+                    && content.equals(other.content);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package httpserver;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * メソッドとパスのパターンでリクエストをハンドラーへ振り分ける。
+ *
+ * <p>
+ * パターンは{@code /}で始まり、セグメント全体を{@code {name}}にするとその値を取り出せる。
+ * 最後のセグメントを{@code *}にすると残りのパス全体に一致し、{@code "*"}という名前で取り出せる。
+ * 取り出した値は{@link HttpRequest#pathParameters}で参照する。
+ *
+ * <p>
+ * パターンは共通の接頭辞をまとめたトライ木に変換しておき、リクエストターゲットを先頭から1回たどって照合する。
+ * 固定のセグメントは可変のセグメントより優先し、一致しないかメソッドのハンドラーがなければ後戻りして他の候補を試す。
+ * 可変のセグメントを含まないルートでは照合の間にオブジェクトを作らない。
+ *
+ * <p>
+ * ルートの登録はサーバーを開始する前に済ませておくこと。
+ */
+public class Router implements HttpHandler {
+
+    private final Node root = new Node("");
+    private HttpHandler notFoundHandler = request -> statusResponse(404, "Not Found",
+            new HttpHeaders());
+
+    public Router get(final String pattern, final HttpHandler handler) {
+        return route("GET", pattern, handler);
+    }
+
+    public Router post(final String pattern, final HttpHandler handler) {
+        return route("POST", pattern, handler);
+    }
+
+    public Router put(final String pattern, final HttpHandler handler) {
+        return route("PUT", pattern, handler);
+    }
+
+    public Router delete(final String pattern, final HttpHandler handler) {
+        return route("DELETE", pattern, handler);
+    }
+
+    public Router route(final String method, final String pattern, final HttpHandler handler) {
+        Objects.requireNonNull(method);
+        Objects.requireNonNull(handler);
+        if (pattern.startsWith("/") == false) {
+            throw new IllegalArgumentException("pattern must start with '/': " + pattern);
+        }
+        final String[] segments = pattern.substring(1).split("/", -1);
+        final String[] names = new String[segments.length];
+        int count = 0;
+        Node node = root;
+        final StringBuilder literal = new StringBuilder("/");
+        for (int i = 0; i < segments.length; i++) {
+            final String segment = segments[i];
+            if (segment.length() > 2 && segment.startsWith("{") && segment.endsWith("}")) {
+                node = node.insert(literal);
+                literal.setLength(0);
+                node = node.param(segment.substring(1, segment.length() - 1), count);
+                names[count++] = node.paramName;
+            } else if (segment.equals("*")) {
+                if (i != segments.length - 1) {
+                    throw new IllegalArgumentException("'*' must be the last segment: " + pattern);
+                }
+                node = node.insert(literal);
+                literal.setLength(0);
+                node = node.wildcard(count);
+                names[count++] = node.paramName;
+            } else if (segment.chars()
+                    .anyMatch(c -> c == '{' || c == '}' || c == '*' || c == '?')) {
+                throw new IllegalArgumentException("invalid segment '" + segment + "': " + pattern);
+            } else {
+                literal.append(segment);
+            }
+            if (i < segments.length - 1) {
+                literal.append('/');
+            }
+        }
+        node = node.insert(literal);
+        node.paramNames = Arrays.copyOf(names, count);
+        node.add(method, handler, pattern);
+        return this;
+    }
+
+    /**
+     * どのパターンにも一致しなかった場合のハンドラー。デフォルトは404を返す。
+     */
+    public Router notFound(final HttpHandler handler) {
+        this.notFoundHandler = Objects.requireNonNull(handler);
+        return this;
+    }
+
+    @Override
+    public HttpResponse handle(final HttpRequest request) throws Exception {
+        final String target = request.requestTarget;
+        final int query = target.indexOf('?');
+        final int end = query < 0 ? target.length() : query;
+        final Node node = root.match(target, 0, end, request.method, null);
+        if (node == null) {
+            final Set<String> allowed = new LinkedHashSet<>();
+            root.collectMethods(target, 0, end, allowed);
+            if (allowed.isEmpty()) {
+                return notFoundHandler.handle(request);
+            }
+            final HttpHeaders headers = new HttpHeaders();
+            headers.add("Allow", String.join(", ", allowed));
+            return statusResponse(405, "Method Not Allowed", headers);
+        }
+        final HttpHandler handler = node.handler(request.method);
+        if (node.paramNames.length == 0) {
+            return handler.handle(request);
+        }
+        final String[] values = new String[node.paramNames.length];
+        root.match(target, 0, end, request.method, values);
+        final Map<String, String> parameters = new LinkedHashMap<>();
+        for (int i = 0; i < values.length; i++) {
+            parameters.put(node.paramNames[i], values[i]);
+        }
+        return handler.handle(request.withPathParameters(parameters));
+    }
+
+    private static HttpResponse statusResponse(final int statusCode, final String reasonPhrase,
+            final HttpHeaders headers) {
+        headers.add(HttpHeaders.CONTENT_TYPE, "text/plain");
+        final ByteBuffer entity = ByteBuffer.wrap(reasonPhrase.getBytes());
+        return new HttpResponse(statusCode, reasonPhrase, headers, entity);
+    }
+
+    private static final class Node {
+
+        private static final char[] NO_INDICES = {};
+        private static final Node[] NO_CHILDREN = {};
+        private static final String[] NO_METHODS = {};
+        private static final HttpHandler[] NO_HANDLERS = {};
+
+        /**
+         * 親からこのノードへ進むときに一致させる固定の文字列。
+         */
+        String prefix;
+        /**
+         * 固定の子ノードの接頭辞の先頭の文字。childrenと同じ順に並ぶ。
+         */
+        char[] indices = NO_INDICES;
+        Node[] children = NO_CHILDREN;
+        Node param;
+        Node wildcard;
+        /**
+         * パラメーターかワイルドカードのノードの場合の名前と、ルートの中での順番。
+         */
+        String paramName;
+        int paramIndex;
+        String[] methods = NO_METHODS;
+        HttpHandler[] handlers = NO_HANDLERS;
+        String[] paramNames;
+
+        Node(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        /**
+         * sに一致する固定のノードを、必要なら既存のノードを分割して作る。
+         */
+        Node insert(final CharSequence s) {
+            if (s.length() == 0) {
+                return this;
+            }
+            final String rest = s.toString();
+            final int i = indexOf(rest.charAt(0));
+            if (i < 0) {
+                final Node child = new Node(rest);
+                addChild(child);
+                return child;
+            }
+            Node child = children[i];
+            int common = 0;
+            final int max = Math.min(child.prefix.length(), rest.length());
+            while (common < max && child.prefix.charAt(common) == rest.charAt(common)) {
+                common++;
+            }
+            if (common < child.prefix.length()) {
+                final Node split = new Node(child.prefix.substring(0, common));
+                child.prefix = child.prefix.substring(common);
+                split.addChild(child);
+                children[i] = split;
+                child = split;
+            }
+            return child.insert(rest.substring(common));
+        }
+
+        Node param(final String name, final int index) {
+            if (param == null) {
+                param = new Node("");
+                param.paramName = name;
+                param.paramIndex = index;
+            } else if (param.paramName.equals(name) == false) {
+                throw new IllegalArgumentException("conflicting path parameter {" + name
+                        + "} and {" + param.paramName + "}");
+            }
+            return param;
+        }
+
+        Node wildcard(final int index) {
+            if (wildcard == null) {
+                wildcard = new Node("");
+                wildcard.paramName = "*";
+                wildcard.paramIndex = index;
+            }
+            return wildcard;
+        }
+
+        void add(final String method, final HttpHandler handler, final String pattern) {
+            if (handler(method) != null) {
+                throw new IllegalArgumentException("duplicate route: " + method + " " + pattern);
+            }
+            methods = Arrays.copyOf(methods, methods.length + 1);
+            methods[methods.length - 1] = method;
+            handlers = Arrays.copyOf(handlers, handlers.length + 1);
+            handlers[handlers.length - 1] = handler;
+        }
+
+        HttpHandler handler(final String method) {
+            for (int i = 0; i < methods.length; i++) {
+                if (methods[i].equals(method)) {
+                    return handlers[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * このノードの接頭辞まで一致しているとして、pathのposからendまでに一致し、
+         * methodのハンドラーを持つルートのノードを返す。
+         * 一致してもmethodのハンドラーを持たなければ後戻りして他の候補を試す。
+         * valuesがnullでなければ取り出した値を格納する。
+         */
+        Node match(final String path, final int pos, final int end, final String method,
+                final String[] values) {
+            if (pos == end) {
+                if (handler(method) != null) {
+                    return this;
+                }
+                if (wildcard != null && wildcard.handler(method) != null) {
+                    if (values != null) {
+                        values[wildcard.paramIndex] = "";
+                    }
+                    return wildcard;
+                }
+                return null;
+            }
+            final int i = indexOf(path.charAt(pos));
+            if (i >= 0) {
+                final Node child = children[i];
+                final int next = pos + child.prefix.length();
+                if (next <= end && path.startsWith(child.prefix, pos)) {
+                    final Node found = child.match(path, next, end, method, values);
+                    if (found != null) {
+                        return found;
+                    }
+                }
+            }
+            if (param != null) {
+                int slash = pos;
+                while (slash < end && path.charAt(slash) != '/') {
+                    slash++;
+                }
+                if (slash > pos) {
+                    final Node found = param.match(path, slash, end, method, values);
+                    if (found != null) {
+                        if (values != null) {
+                            values[param.paramIndex] = path.substring(pos, slash);
+                        }
+                        return found;
+                    }
+                }
+            }
+            if (wildcard != null && wildcard.handler(method) != null) {
+                if (values != null) {
+                    values[wildcard.paramIndex] = path.substring(pos, end);
+                }
+                return wildcard;
+            }
+            return null;
+        }
+
+        /**
+         * pathのposからendまでに一致する全てのルートのメソッドをmethodsへ加える。405のAllowに使う。
+         */
+        void collectMethods(final String path, final int pos, final int end,
+                final Set<String> methods) {
+            if (pos == end) {
+                methods.addAll(Arrays.asList(this.methods));
+                if (wildcard != null) {
+                    methods.addAll(Arrays.asList(wildcard.methods));
+                }
+                return;
+            }
+            final int i = indexOf(path.charAt(pos));
+            if (i >= 0) {
+                final Node child = children[i];
+                final int next = pos + child.prefix.length();
+                if (next <= end && path.startsWith(child.prefix, pos)) {
+                    child.collectMethods(path, next, end, methods);
+                }
+            }
+            if (param != null) {
+                int slash = pos;
+                while (slash < end && path.charAt(slash) != '/') {
+                    slash++;
+                }
+                if (slash > pos) {
+                    param.collectMethods(path, slash, end, methods);
+                }
+            }
+            if (wildcard != null) {
+                methods.addAll(Arrays.asList(wildcard.methods));
+            }
+        }
+
+        private int indexOf(final char c) {
+            for (int i = 0; i < indices.length; i++) {
+                if (indices[i] == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void addChild(final Node child) {
+            indices = Arrays.copyOf(indices, indices.length + 1);
+            indices[indices.length - 1] = child.prefix.charAt(0);
+            children = Arrays.copyOf(children, children.length + 1);
+            children[children.length - 1] = child;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package httpserver;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * サーバーの計測値。{@link WorkerMetrics}を集計する。
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+
+    private final List<WorkerMetrics> workers;
+
+    ServerMetrics(final List<WorkerMetrics> workers) {
+        this.workers = Collections.unmodifiableList(workers);
+    }
+
+    public List<WorkerMetrics> workers() {
+        return workers;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return workers.stream().mapToInt(WorkerMetrics::activeConnections).sum();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return sum(WorkerMetrics::acceptedConnections);
+    }
+
+    @Override
+    public long getClosedConnections() {
+        return sum(WorkerMetrics::closedConnections);
+    }
+
+    @Override
+    public long getRequests() {
+        return sum(WorkerMetrics::requests);
+    }
+
+    @Override
+    public long getBytesRead() {
+        return sum(WorkerMetrics::bytesRead);
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return sum(WorkerMetrics::bytesWritten);
+    }
+
+    @Override
+    public long getParseErrors() {
+        return sum(WorkerMetrics::parseErrors);
+    }
+
+    @Override
+    public long getHandlerExceptions() {
+        return sum(WorkerMetrics::handlerExceptions);
+    }
+
+    @Override
+    public long getShedRequests() {
+        return sum(WorkerMetrics::shedRequests);
+    }
+
+    @Override
+    public long getSelectorLoops() {
+        return sum(WorkerMetrics::selectorLoops);
+    }
+
+    @Override
+    public double getLatencyMeanMillis() {
+        final long count = sum(worker -> worker.latency().count());
+        return count == 0 ? 0 : sum(worker -> worker.latency().sum()) / 1e6 / count;
+    }
+
+    @Override
+    public double getLatencyP50Millis() {
+        return maxPercentile(50);
+    }
+
+    @Override
+    public double getLatencyP99Millis() {
+        return maxPercentile(99);
+    }
+
+    @Override
+    public double getLatencyP999Millis() {
+        return maxPercentile(99.9);
+    }
+
+    /**
+     * Workerをまたいだパーセンタイルは計算できないため、Workerごとの値の最大を返す。
+     */
+    private double maxPercentile(final double percentile) {
+        return workers.stream().mapToLong(worker -> worker.latency().valueAtPercentile(percentile))
+                .max().orElse(0) / 1e6;
+    }
+
+    private long sum(final ToLongFunction<WorkerMetrics> f) {
+        return workers.stream().mapToLong(f).sum();
+    }
+}
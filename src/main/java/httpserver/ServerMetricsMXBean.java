@@ -0,0 +1,35 @@
+package httpserver;
+
+/**
+ * JMXで公開するサーバー全体の計測値。
+ */
+public interface ServerMetricsMXBean {
+
+    int getActiveConnections();
+
+    long getAcceptedConnections();
+
+    long getClosedConnections();
+
+    long getRequests();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getParseErrors();
+
+    long getHandlerExceptions();
+
+    long getShedRequests();
+
+    long getSelectorLoops();
+
+    double getLatencyMeanMillis();
+
+    double getLatencyP50Millis();
+
+    double getLatencyP99Millis();
+
+    double getLatencyP999Millis();
+}
@@ -0,0 +1,206 @@
+package httpserver;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * rootディレクトリ以下のファイルを返すハンドラー。
+ *
+ * <p>
+ * GETとHEADに対応し、If-Modified-Sinceと単一範囲のRangeを解釈する。
+ * ファイルの内容は{@link FileBody}で送られる。
+ * 同じディレクトリに元のファイル以降に更新された{@code .gz}のファイルがあり、
+ * クライアントがgzipを受け付ける場合は、Rangeがなければそちらを送る。
+ */
+public class StaticFileHandler implements HttpHandler {
+
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+    static {
+        CONTENT_TYPES.put("html", "text/html; charset=UTF-8");
+        CONTENT_TYPES.put("htm", "text/html; charset=UTF-8");
+        CONTENT_TYPES.put("css", "text/css; charset=UTF-8");
+        CONTENT_TYPES.put("js", "application/javascript; charset=UTF-8");
+        CONTENT_TYPES.put("json", "application/json");
+        CONTENT_TYPES.put("txt", "text/plain; charset=UTF-8");
+        CONTENT_TYPES.put("xml", "application/xml");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("webp", "image/webp");
+        CONTENT_TYPES.put("woff", "font/woff");
+        CONTENT_TYPES.put("woff2", "font/woff2");
+        CONTENT_TYPES.put("pdf", "application/pdf");
+        CONTENT_TYPES.put("wasm", "application/wasm");
+    }
+
+    private final Path root;
+
+    public StaticFileHandler(final Path root) {
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    @Override
+    public HttpResponse handle(final HttpRequest request) throws Exception {
+        final boolean head = request.method.equals("HEAD");
+        if (head == false && request.method.equals("GET") == false) {
+            final HttpHeaders headers = new HttpHeaders();
+            headers.add("Allow", "GET, HEAD");
+            return new HttpResponse(405, "Method Not Allowed", headers, ByteBuffer.allocate(0));
+        }
+
+        final Path file = resolve(request.requestTarget);
+        if (file == null) {
+            return new HttpResponse(404, "Not Found", new HttpHeaders(), ByteBuffer.allocate(0));
+        }
+
+        final Path precompressed = precompressed(file);
+        final boolean gzip = precompressed != null
+                && request.headers.contains(HttpHeaders.RANGE) == false
+                && ResponseCompressor.accepts(request.headers, ResponseCompressor.GZIP);
+        final Path content = gzip ? precompressed : file;
+        final long length = Files.size(content);
+        final Instant lastModified = Files.getLastModifiedTime(file).toInstant()
+                .truncatedTo(ChronoUnit.SECONDS);
+        final HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaders.LAST_MODIFIED, HttpDate.format(lastModified));
+        headers.add("Accept-Ranges", "bytes");
+        if (precompressed != null) {
+            headers.add(HttpHeaders.VARY, "Accept-Encoding");
+        }
+
+        final Instant ifModifiedSince = HttpDate
+                .parse(request.headers.get(HttpHeaders.IF_MODIFIED_SINCE));
+        if (ifModifiedSince != null && lastModified.isAfter(ifModifiedSince) == false) {
+            return new HttpResponse(304, "Not Modified", headers);
+        }
+
+        headers.add(HttpHeaders.CONTENT_TYPE, contentType(file));
+        if (gzip) {
+            headers.add(HttpHeaders.CONTENT_ENCODING, ResponseCompressor.GZIP);
+        }
+
+        final String range = request.headers.get(HttpHeaders.RANGE);
+        long position = 0;
+        long count = length;
+        int statusCode = 200;
+        String reasonPhrase = "OK";
+        if (range != null) {
+            final long[] r = parseRange(range, length);
+            if (r == null) {
+                headers.add("Content-Range", "bytes */" + length);
+                return new HttpResponse(416, "Range Not Satisfiable", headers,
+                        ByteBuffer.allocate(0));
+            }
+            if (r.length == 2) {
+                position = r[0];
+                count = r[1] - r[0] + 1;
+                statusCode = 206;
+                reasonPhrase = "Partial Content";
+                headers.add("Content-Range", "bytes " + r[0] + "-" + r[1] + "/" + length);
+            }
+        }
+
+        if (head) {
+            headers.add(HttpHeaders.CONTENT_LENGTH, String.valueOf(count));
+            return new HttpResponse(statusCode, reasonPhrase, headers);
+        }
+        return new HttpResponse(statusCode, reasonPhrase, headers,
+                new FileBody(content, position, count));
+    }
+
+    private static Path precompressed(final Path file) throws IOException {
+        final Path gz = file.resolveSibling(file.getFileName() + ".gz");
+        if (Files.isRegularFile(gz) == false) {
+            return null;
+        }
+        // 元のファイルより古い場合は内容が食い違っているとみなす
+        if (Files.getLastModifiedTime(gz).compareTo(Files.getLastModifiedTime(file)) < 0) {
+            return null;
+        }
+        return gz;
+    }
+
+    private Path resolve(final String requestTarget) throws IOException {
+        final int query = requestTarget.indexOf('?');
+        final String rawPath = query < 0 ? requestTarget : requestTarget.substring(0, query);
+        final String path;
+        try {
+            path = URLDecoder.decode(rawPath.replace("+", "%2B"), StandardCharsets.UTF_8);
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
+        if (path.startsWith("/") == false || path.indexOf('\0') >= 0) {
+            return null;
+        }
+        Path file = root.resolve(path.substring(1)).normalize();
+        if (file.startsWith(root) == false) {
+            return null;
+        }
+        if (Files.isDirectory(file)) {
+            file = file.resolve("index.html");
+        }
+        if (Files.isRegularFile(file) == false) {
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Rangeヘッダーを解釈する。
+     * 範囲を満たせない場合はnull、範囲指定を無視して全体を返す場合は空の配列、
+     * それ以外は先頭と末尾の位置を返す。
+     */
+    static long[] parseRange(final String range, final long length) {
+        if (range.startsWith("bytes=") == false || range.indexOf(',') >= 0) {
+            return new long[0];
+        }
+        final String spec = range.substring("bytes=".length()).trim();
+        final int hyphen = spec.indexOf('-');
+        if (hyphen < 0) {
+            return new long[0];
+        }
+        try {
+            final String start = spec.substring(0, hyphen).trim();
+            final String end = spec.substring(hyphen + 1).trim();
+            if (start.isEmpty()) {
+                final long suffix = Long.parseLong(end);
+                if (suffix <= 0 || length == 0) {
+                    return null;
+                }
+                return new long[] { Math.max(0, length - suffix), length - 1 };
+            }
+            final long first = Long.parseLong(start);
+            final long last = end.isEmpty() ? length - 1
+                    : Math.min(Long.parseLong(end), length - 1);
+            if (first >= length || last < first) {
+                return null;
+            }
+            return new long[] { first, last };
+        } catch (final NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    private static String contentType(final Path file) {
+        final String name = file.getFileName().toString();
+        final int dot = name.lastIndexOf('.');
+        if (dot >= 0) {
+            final String contentType = CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase());
+            if (contentType != null) {
+                return contentType;
+            }
+        }
+        return "application/octet-stream";
+    }
+}
@@ -0,0 +1,123 @@
+package httpserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Workerごとに持つハッシュ化されたタイミングホイール。
+ *
+ * <p>
+ * 登録も取り消しも定数時間で行える。精度はtickの単位まで。
+ * Workerのスレッドからだけ使われるため同期は行わない。
+ */
+class TimingWheel {
+
+    private static final int UNSCHEDULED = -1;
+    private static final int EXPIRED = -2;
+
+    private final long tickMillis;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final List<Timeout> expired = new ArrayList<>();
+    private long currentTick;
+    private int size;
+
+    TimingWheel(final long tickMillis, final int bucketCount, final long nowMillis) {
+        this.tickMillis = tickMillis;
+        final int n = Integer.highestOneBit(Math.max(1, bucketCount - 1)) << 1;
+        this.buckets = new Timeout[n];
+        this.mask = n - 1;
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    Timeout schedule(final Runnable task, final long delayMillis) {
+        final Timeout timeout = new Timeout(task);
+        schedule(timeout, delayMillis);
+        return timeout;
+    }
+
+    void schedule(final Timeout timeout, final long delayMillis) {
+        cancel(timeout);
+        final long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        timeout.deadline = currentTick + ticks;
+        final int bucket = (int) (timeout.deadline & mask);
+        timeout.bucket = bucket;
+        timeout.next = buckets[bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[bucket] = timeout;
+        size++;
+    }
+
+    void cancel(final Timeout timeout) {
+        if (timeout.bucket < 0) {
+            timeout.bucket = UNSCHEDULED;
+            return;
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = UNSCHEDULED;
+        size--;
+    }
+
+    /**
+     * nowMillisまでに期限を迎えたタイムアウトのタスクを実行する。
+     */
+    void advance(final long nowMillis) {
+        final long targetTick = nowMillis / tickMillis;
+        while (currentTick < targetTick) {
+            currentTick++;
+            Timeout timeout = buckets[(int) (currentTick & mask)];
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+                if (timeout.deadline <= currentTick) {
+                    cancel(timeout);
+                    timeout.bucket = EXPIRED;
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+            for (int i = 0; i < expired.size(); i++) {
+                final Timeout e = expired.get(i);
+                if (e.bucket == EXPIRED) {
+                    e.bucket = UNSCHEDULED;
+                    e.task.run();
+                }
+            }
+            expired.clear();
+            if (size == 0) {
+                currentTick = targetTick;
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    long tickMillis() {
+        return tickMillis;
+    }
+
+    static class Timeout {
+
+        private final Runnable task;
+        private long deadline;
+        private int bucket = UNSCHEDULED;
+        private Timeout prev;
+        private Timeout next;
+
+        Timeout(final Runnable task) {
+            this.task = task;
+        }
+    }
+}
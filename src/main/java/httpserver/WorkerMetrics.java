@@ -0,0 +1,89 @@
+package httpserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * I/O Workerごとの計測値。
+ *
+ * <p>
+ * ほとんどの値はWorkerのスレッドだけが更新するが、ハンドラーの例外はハンドラーを実行するスレッドで数える。
+ * 他のスレッドから読んだ値は近似値になる。
+ */
+public final class WorkerMetrics {
+
+    private final String name;
+    private final AtomicInteger activeConnections;
+    final LongAdder acceptedConnections = new LongAdder();
+    final LongAdder closedConnections = new LongAdder();
+    final LongAdder requests = new LongAdder();
+    final LongAdder bytesRead = new LongAdder();
+    final LongAdder bytesWritten = new LongAdder();
+    final LongAdder parseErrors = new LongAdder();
+    final LongAdder handlerExceptions = new LongAdder();
+    final LongAdder shedRequests = new LongAdder();
+    final LongAdder selectorLoops = new LongAdder();
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    WorkerMetrics(final String name, final AtomicInteger activeConnections) {
+        this.name = name;
+        this.activeConnections = activeConnections;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int activeConnections() {
+        return activeConnections.get();
+    }
+
+    public long acceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    public long closedConnections() {
+        return closedConnections.sum();
+    }
+
+    public long requests() {
+        return requests.sum();
+    }
+
+    public long bytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long bytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * 不正であるか制限を超えていたために拒否したリクエストの数。
+     */
+    public long parseErrors() {
+        return parseErrors.sum();
+    }
+
+    public long handlerExceptions() {
+        return handlerExceptions.sum();
+    }
+
+    /**
+     * 過負荷のためハンドラーを呼ばずに503を返したリクエストの数。
+     */
+    public long shedRequests() {
+        return shedRequests.sum();
+    }
+
+    public long selectorLoops() {
+        return selectorLoops.sum();
+    }
+
+    /**
+     * リクエストを読み終えてからレスポンスを書き終えるまでの時間。
+     */
+    public LatencyHistogram latency() {
+        return latency;
+    }
+}
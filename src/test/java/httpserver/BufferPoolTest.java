@@ -0,0 +1,57 @@
+package httpserver;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+class BufferPoolTest {
+
+    @Test
+    void reuse() throws Exception {
+        final BufferPool pool = new BufferPool(1024, 2);
+        final ByteBuffer buf = pool.acquire();
+        assertThat(buf.isDirect()).isTrue();
+        assertThat(buf.capacity()).isEqualTo(1024);
+        assertThat(pool.inUse()).isEqualTo(1);
+
+        buf.put((byte) 1).flip();
+        pool.release(buf);
+        assertThat(pool.pooled()).isEqualTo(1);
+        assertThat(pool.inUse()).isEqualTo(0);
+
+        // 返したバッファをクリアした状態で貸し出し、新たには確保しない
+        final ByteBuffer reused = pool.acquire();
+        assertThat(reused).isSameAs(buf);
+        assertThat(reused.position()).isEqualTo(0);
+        assertThat(reused.limit()).isEqualTo(1024);
+        assertThat(pool.pooled()).isEqualTo(0);
+        assertThat(pool.allocated()).isEqualTo(1);
+        assertThat(pool.acquired()).isEqualTo(2);
+        assertThat(pool.released()).isEqualTo(1);
+    }
+
+    @Test
+    void discardWhenFull() throws Exception {
+        final BufferPool pool = new BufferPool(1024, 2);
+        final ByteBuffer a = pool.acquire();
+        final ByteBuffer b = pool.acquire();
+        final ByteBuffer c = pool.acquire();
+        assertThat(pool.allocated()).isEqualTo(3);
+        assertThat(pool.inUse()).isEqualTo(3);
+
+        pool.release(a);
+        pool.release(b);
+        // maxPooledに達しているので捨てる
+        pool.release(c);
+        assertThat(pool.pooled()).isEqualTo(2);
+        assertThat(pool.discarded()).isEqualTo(1);
+        assertThat(pool.inUse()).isEqualTo(0);
+
+        assertThat(pool.acquire()).isSameAs(b);
+        assertThat(pool.acquire()).isSameAs(a);
+        assertThat(pool.acquire()).isNotSameAs(c);
+        assertThat(pool.allocated()).isEqualTo(4);
+    }
+}
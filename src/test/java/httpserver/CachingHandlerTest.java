@@ -0,0 +1,152 @@
+package httpserver;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class CachingHandlerTest {
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Test
+    void hit() throws Exception {
+        final CachingHandler handler = CachingHandler.builder(request -> response("max-age=60"))
+                .build();
+        final HttpResponse first = handler.handle(request("/a", null));
+        final HttpResponse second = handler.handle(request("/a", null));
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(second.headerBlock).isSameAs(first.headerBlock);
+        assertThat(second.entity).isSameAs(first.entity);
+        assertThat(decode(second.entity)).isEqualTo("body 1");
+
+        handler.handle(request("/b", null));
+        assertThat(calls.get()).isEqualTo(2);
+        handler.handle(new HttpRequest("POST", "/a", "HTTP/1.1", new HttpHeaders(), -1, null));
+        assertThat(calls.get()).isEqualTo(3);
+    }
+
+    @Test
+    void notModified() throws Exception {
+        final CachingHandler handler = CachingHandler.builder(request -> response(null))
+                .defaultTtl(Duration.ofMinutes(1)).build();
+        final HttpResponse response = handler.handle(request("/a", null));
+        final String etag = response.headerBlock.headers().get("ETag");
+        assertThat(etag).startsWith("\"");
+        final HttpResponse notModified = handler.handle(request("/a", "W/" + etag));
+        assertThat(notModified.statusCode).isEqualTo(304);
+        assertThat(notModified.entity).isNull();
+        assertThat(notModified.headerBlock.headers().get("ETag")).isEqualTo(etag);
+        assertThat(handler.handle(request("/a", "\"other\"")).statusCode).isEqualTo(200);
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    void notStored() throws Exception {
+        final CachingHandler noStore = CachingHandler.builder(request -> response("no-store"))
+                .defaultTtl(Duration.ofMinutes(1)).build();
+        noStore.handle(request("/a", null));
+        noStore.handle(request("/a", null));
+        assertThat(calls.get()).isEqualTo(2);
+
+        final CachingHandler noTtl = CachingHandler.builder(request -> response(null)).build();
+        noTtl.handle(request("/a", null));
+        noTtl.handle(request("/a", null));
+        assertThat(calls.get()).isEqualTo(4);
+
+        final CachingHandler expired = CachingHandler.builder(request -> response("max-age=0"))
+                .build();
+        expired.handle(request("/a", null));
+        expired.handle(request("/a", null));
+        assertThat(calls.get()).isEqualTo(6);
+    }
+
+    @Test
+    void eviction() throws Exception {
+        final CachingHandler handler = CachingHandler.builder(request -> response("max-age=60"))
+                .maxSize(1000).build();
+        for (int i = 0; i < 100; i++) {
+            handler.handle(request("/" + i, null));
+        }
+        assertThat(handler.size()).isLessThanOrEqualTo(1000).isPositive();
+        handler.handle(request("/99", null));
+        assertThat(calls.get()).isEqualTo(100);
+        handler.handle(request("/0", null));
+        assertThat(calls.get()).isEqualTo(101);
+        handler.clear();
+        assertThat(handler.size()).isZero();
+    }
+
+    @Test
+    void authorization() throws Exception {
+        final CachingHandler handler = CachingHandler.builder(request -> response("max-age=60"))
+                .build();
+        handler.handle(authorized(request("/a", null)));
+        handler.handle(authorized(request("/a", null)));
+        assertThat(calls.get()).isEqualTo(2);
+
+        // 認証なしで保持したレスポンスは認証されたリクエストへ返さない
+        handler.handle(request("/a", null));
+        handler.handle(authorized(request("/a", null)));
+        assertThat(calls.get()).isEqualTo(4);
+        handler.handle(request("/a", null));
+        assertThat(calls.get()).isEqualTo(4);
+
+        final CachingHandler shared = CachingHandler
+                .builder(request -> response("public, max-age=60")).build();
+        shared.handle(authorized(request("/a", null)));
+        shared.handle(authorized(request("/a", null)));
+        assertThat(calls.get()).isEqualTo(5);
+
+        final CachingHandler sMaxAge = CachingHandler
+                .builder(request -> response("s-maxage=60")).build();
+        sMaxAge.handle(authorized(request("/a", null)));
+        sMaxAge.handle(authorized(request("/a", null)));
+        assertThat(calls.get()).isEqualTo(6);
+    }
+
+    @Test
+    void keyedByHost() throws Exception {
+        final CachingHandler handler = CachingHandler.builder(request -> response("max-age=60"))
+                .build();
+        final HttpRequest a = request("/", null);
+        a.headers.add("Host", "a.example");
+        final HttpRequest b = request("/", null);
+        b.headers.add("Host", "b.example");
+        assertThat(decode(handler.handle(a).entity)).isEqualTo("body 1");
+        assertThat(decode(handler.handle(b).entity)).isEqualTo("body 2");
+        assertThat(decode(handler.handle(a).entity)).isEqualTo("body 1");
+        assertThat(calls.get()).isEqualTo(2);
+    }
+
+    private static HttpRequest authorized(final HttpRequest request) {
+        request.headers.add("Authorization", "Bearer token");
+        return request;
+    }
+
+    private HttpResponse response(final String cacheControl) {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.add("Content-Type", "text/plain");
+        if (cacheControl != null) {
+            headers.add("Cache-Control", cacheControl);
+        }
+        return new HttpResponse(200, "OK", headers,
+                ByteBuffer.wrap(("body " + calls.incrementAndGet()).getBytes()));
+    }
+
+    private static HttpRequest request(final String target, final String ifNoneMatch) {
+        final HttpHeaders headers = new HttpHeaders();
+        if (ifNoneMatch != null) {
+            headers.add("If-None-Match", ifNoneMatch);
+        }
+        return new HttpRequest("GET", target, "HTTP/1.1", headers, -1, null);
+    }
+
+    private static String decode(final ByteBuffer buf) {
+        return StandardCharsets.UTF_8.decode(buf.duplicate()).toString();
+    }
+}
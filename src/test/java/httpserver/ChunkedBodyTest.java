@@ -0,0 +1,118 @@
+package httpserver;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class ChunkedBodyTest {
+
+    @Test
+    void writeTo() throws Exception {
+        final ChunkedBody body = new ChunkedBody();
+        body.write(ByteBuffer.wrap("hello".getBytes()));
+        body.write(ByteBuffer.wrap(", world".getBytes()));
+        final Channel channel = new Channel(Integer.MAX_VALUE);
+        assertThat(body.writeTo(channel)).isEqualTo(ResponseBody.Progress.WAITING);
+        body.close();
+        assertThat(body.writeTo(channel)).isEqualTo(ResponseBody.Progress.DONE);
+        assertThat(channel.toString()).isEqualTo("5\r\nhello\r\n7\r\n, world\r\n0\r\n\r\n");
+        assertThat(body.written).isEqualTo(channel.out.size());
+    }
+
+    @Test
+    void writability() throws Exception {
+        final ChunkedBody body = new ChunkedBody();
+        body.setWriteBufferWaterMarks(4, 8);
+        final AtomicInteger notified = new AtomicInteger();
+        body.setWritabilityListener(notified::incrementAndGet);
+
+        body.write(ByteBuffer.wrap("12345".getBytes()));
+        assertThat(body.isWritable()).isTrue();
+        body.write(ByteBuffer.wrap("67890".getBytes()));
+        assertThat(body.isWritable()).isFalse();
+
+        // 1つ目のチャンクを送り終えても、まだlowを超えている
+        final Channel channel = new Channel(10);
+        assertThat(body.writeTo(channel)).isEqualTo(ResponseBody.Progress.PARTIAL);
+        assertThat(body.isWritable()).isFalse();
+        assertThat(notified.get()).isZero();
+
+        channel.limit = Integer.MAX_VALUE;
+        assertThat(body.writeTo(channel)).isEqualTo(ResponseBody.Progress.WAITING);
+        assertThat(body.isWritable()).isTrue();
+        assertThat(notified.get()).isEqualTo(1);
+    }
+
+    @Test
+    void abortNotifiesWaitingWriter() throws Exception {
+        final ChunkedBody body = new ChunkedBody();
+        body.setWriteBufferWaterMarks(0, 1);
+        final AtomicInteger notified = new AtomicInteger();
+        body.setWritabilityListener(notified::incrementAndGet);
+        body.write(ByteBuffer.wrap("hello".getBytes()));
+        assertThat(body.isWritable()).isFalse();
+        body.abort();
+        assertThat(notified.get()).isEqualTo(1);
+        assertThatThrownBy(() -> body.write(ByteBuffer.wrap("x".getBytes())))
+                .isInstanceOf(ClosedChannelException.class);
+    }
+
+    /**
+     * 合わせてlimitバイトまで受け取るチャネル。
+     */
+    private static class Channel implements GatheringByteChannel {
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int limit;
+
+        Channel(final int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public long write(final ByteBuffer[] srcs, final int offset, final int length) {
+            long total = 0;
+            for (int i = offset; i < offset + length && total < limit; i++) {
+                final ByteBuffer src = srcs[i];
+                final int n = (int) Math.min(src.remaining(), limit - total);
+                final byte[] bs = new byte[n];
+                src.get(bs);
+                out.write(bs, 0, n);
+                total += n;
+            }
+            limit -= total;
+            return total;
+        }
+
+        @Override
+        public long write(final ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(final ByteBuffer src) {
+            return (int) write(new ByteBuffer[] { src });
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package httpserver;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+class ConcurrencyLimiterTest {
+
+    @Test
+    void fixed() throws Exception {
+        final ConcurrencyLimiter limiter = ConcurrencyLimiter.fixed(2);
+        assertThat(limiter.tryAcquire()).isTrue();
+        assertThat(limiter.tryAcquire()).isTrue();
+        assertThat(limiter.tryAcquire()).isFalse();
+        assertThat(limiter.inFlight()).isEqualTo(2);
+        limiter.onComplete(1_000_000);
+        assertThat(limiter.tryAcquire()).isTrue();
+        limiter.onDropped();
+        limiter.onComplete(1_000_000);
+        assertThat(limiter.inFlight()).isZero();
+        assertThat(limiter.limit()).isEqualTo(2);
+    }
+
+    @Test
+    void aimd() throws Exception {
+        final ConcurrencyLimiter limiter = ConcurrencyLimiter.aimd(2, 100,
+                Duration.ofMillis(10));
+        // 上限まで使いながら速く終わる間は増える
+        for (int i = 0; i < 50; i++) {
+            acquireAll(limiter);
+            completeAll(limiter, Duration.ofMillis(1).toNanos());
+        }
+        final int increased = limiter.limit();
+        assertThat(increased).isGreaterThan(50);
+        // 遅くなると減る
+        acquireAll(limiter);
+        completeAll(limiter, Duration.ofMillis(100).toNanos());
+        assertThat(limiter.limit()).isLessThan(increased / 2).isGreaterThanOrEqualTo(2);
+    }
+
+    @Test
+    void gradient() throws Exception {
+        final ConcurrencyLimiter limiter = ConcurrencyLimiter.gradient(2, 1000);
+        for (int i = 0; i < 200; i++) {
+            acquireAll(limiter);
+            completeAll(limiter, Duration.ofMillis(1).toNanos());
+        }
+        final int increased = limiter.limit();
+        assertThat(increased).isGreaterThan(10);
+        // 実行時間が長期の平均を大きく超えると下がる
+        acquireAll(limiter);
+        completeAll(limiter, Duration.ofMillis(20).toNanos());
+        assertThat(limiter.limit()).isLessThan(increased * 3 / 4);
+    }
+
+    private static void acquireAll(final ConcurrencyLimiter limiter) {
+        while (limiter.tryAcquire()) {
+        }
+    }
+
+    private static void completeAll(final ConcurrencyLimiter limiter, final long latency) {
+        while (limiter.inFlight() > 0) {
+            limiter.onComplete(latency);
+        }
+    }
+}
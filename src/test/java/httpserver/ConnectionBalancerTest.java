@@ -0,0 +1,60 @@
+package httpserver;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class ConnectionBalancerTest {
+
+    @Test
+    void roundRobin() throws Exception {
+        final List<Load> workers = Arrays.asList(new Load(0, 0), new Load(0, 0),
+                new Load(0, 0));
+        final ConnectionBalancer balancer = ConnectionBalancer.roundRobin();
+        assertThat(balancer.select(workers)).isEqualTo(0);
+        assertThat(balancer.select(workers)).isEqualTo(1);
+        assertThat(balancer.select(workers)).isEqualTo(2);
+        assertThat(balancer.select(workers)).isEqualTo(0);
+    }
+
+    @Test
+    void leastConnections() throws Exception {
+        final List<Load> workers = Arrays.asList(new Load(3, 0), new Load(1, 0.9),
+                new Load(1, 0.1), new Load(2, 0));
+        assertThat(ConnectionBalancer.leastConnections().select(workers)).isEqualTo(2);
+    }
+
+    @Test
+    void powerOfTwoChoices() throws Exception {
+        final List<Load> workers = Arrays.asList(new Load(100, 0.5), new Load(0, 0));
+        final ConnectionBalancer balancer = ConnectionBalancer.powerOfTwoChoices();
+        for (int i = 0; i < 100; i++) {
+            assertThat(balancer.select(workers)).isEqualTo(1);
+        }
+        assertThat(balancer.select(Arrays.asList(new Load(5, 1)))).isEqualTo(0);
+    }
+
+    private static class Load implements ConnectionBalancer.WorkerLoad {
+
+        private final int connections;
+        private final double busyRatio;
+
+        Load(final int connections, final double busyRatio) {
+            this.connections = connections;
+            this.busyRatio = busyRatio;
+        }
+
+        @Override
+        public int connections() {
+            return connections;
+        }
+
+        @Override
+        public double busyRatio() {
+            return busyRatio;
+        }
+    }
+}
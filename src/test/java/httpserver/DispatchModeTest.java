@@ -0,0 +1,28 @@
+package httpserver;
+
+import static org.assertj.core.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class DispatchModeTest {
+
+    @Test
+    void virtualThreadPerRequest() throws Exception {
+        if (Runtime.version().feature() >= 21) {
+            final DispatchMode mode = DispatchMode.virtualThreadPerRequest();
+            assertThat(mode.isInline()).isFalse();
+            mode.shutdown();
+            return;
+        }
+        assertThatThrownBy(DispatchMode::virtualThreadPerRequest)
+                .isInstanceOf(UnsupportedOperationException.class);
+    }
+
+    @Test
+    void bounded() throws Exception {
+        final DispatchMode mode = DispatchMode.bounded(1, 1);
+        assertThat(mode.isInline()).isFalse();
+        mode.shutdown();
+        assertThat(DispatchMode.inline().isInline()).isTrue();
+    }
+}
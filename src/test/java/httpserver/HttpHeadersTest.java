@@ -0,0 +1,44 @@
+package httpserver;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+class HttpHeadersTest {
+
+    @Test
+    void caseInsensitive() throws Exception {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.add("Content-Type", "text/plain");
+        headers.add("x-foo", "1");
+        headers.add("X-Foo", "2");
+        assertThat(headers.get("content-type")).isEqualTo("text/plain");
+        assertThat(headers.getAll("X-FOO")).containsExactly("1", "2");
+        assertThat(headers.get("Host")).isNull();
+
+        headers.set("X-Foo", "3");
+        assertThat(headers.getAll("x-foo")).containsExactly("3");
+        assertThat(headers.remove("CONTENT-TYPE")).isTrue();
+        assertThat(headers.size()).isEqualTo(1);
+        assertThat(headers.name(0)).isEqualTo("X-Foo");
+    }
+
+    @Test
+    void parsed() throws Exception {
+        final String s = "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: Upgrade, Close\r\n"
+                + "X-Custom: a\r\n\r\n";
+        final HttpRequestParser parser = new HttpRequestParser();
+        assertThat(parser.parse(ByteBuffer.wrap(s.getBytes()))).isTrue();
+        final HttpHeaders headers = parser.build().headers;
+        assertThat(headers.name(0)).isSameAs(HttpHeaders.HOST);
+        assertThat(headers.get("HOST")).isEqualTo("localhost");
+        assertThat(headers.containsToken(HttpHeaders.CONNECTION, "close")).isTrue();
+        assertThat(headers.containsToken(HttpHeaders.CONNECTION, "keep-alive")).isFalse();
+
+        headers.add("X-Custom", "b");
+        assertThat(headers.getAll("x-custom")).containsExactly("a", "b");
+        assertThat(headers.size()).isEqualTo(4);
+    }
+}
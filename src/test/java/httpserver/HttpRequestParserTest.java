@@ -3,8 +3,8 @@ package httpserver;
 import static org.assertj.core.api.Assertions.*;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
+import org.assertj.core.api.ThrowableAssert.ThrowingCallable;
 import org.junit.jupiter.api.Test;
 
 class HttpRequestParserTest {
@@ -28,12 +28,13 @@ class HttpRequestParserTest {
         assertThat(request.method).isEqualTo("POST");
         assertThat(request.requestTarget).isEqualTo("/");
         assertThat(request.httpVersion).isEqualTo("HTTP/1.1");
-        assertThat(request.headers).hasSize(5)
-                .containsEntry("Host", Arrays.asList("localhost:8080"))
-                .containsEntry("User-Agent", Arrays.asList("curl/7.43.0"))
-                .containsEntry("Accept", Arrays.asList("*/*"))
-                .containsEntry("Content-Length", Arrays.asList("25"))
-                .containsEntry("Content-Type", Arrays.asList("application/x-www-form-urlencoded"));
+        assertThat(request.headers.size()).isEqualTo(5);
+        assertThat(request.headers.getAll("Host")).containsExactly("localhost:8080");
+        assertThat(request.headers.getAll("User-Agent")).containsExactly("curl/7.43.0");
+        assertThat(request.headers.getAll("Accept")).containsExactly("*/*");
+        assertThat(request.headers.getAll("Content-Length")).containsExactly("25");
+        assertThat(request.headers.getAll("Content-Type"))
+                .containsExactly("application/x-www-form-urlencoded");
         assertThat(request.contentLength).isEqualTo(25);
         assertThat(request.entity)
                 .isEqualTo(ByteBuffer.wrap("greeting=Hello&name=world".getBytes()));
@@ -55,10 +56,10 @@ class HttpRequestParserTest {
         assertThat(request.method).isEqualTo("GET");
         assertThat(request.requestTarget).isEqualTo("/?text=HelloWorld");
         assertThat(request.httpVersion).isEqualTo("HTTP/1.1");
-        assertThat(request.headers).hasSize(3)
-                .containsEntry("Host", Arrays.asList("localhost:8080"))
-                .containsEntry("User-Agent", Arrays.asList("curl/7.43.0"))
-                .containsEntry("Accept", Arrays.asList("*/*"));
+        assertThat(request.headers.size()).isEqualTo(3);
+        assertThat(request.headers.getAll("Host")).containsExactly("localhost:8080");
+        assertThat(request.headers.getAll("User-Agent")).containsExactly("curl/7.43.0");
+        assertThat(request.headers.getAll("Accept")).containsExactly("*/*");
         assertThat(request.contentLength).isEqualTo(-1);
         assertThat(request.entity).isNull();
     }
@@ -86,14 +87,219 @@ class HttpRequestParserTest {
         assertThat(request.method).isEqualTo("POST");
         assertThat(request.requestTarget).isEqualTo("/");
         assertThat(request.httpVersion).isEqualTo("HTTP/1.1");
-        assertThat(request.headers).hasSize(5)
-                .containsEntry("Host", Arrays.asList("localhost:8080"))
-                .containsEntry("User-Agent", Arrays.asList("curl/7.43.0"))
-                .containsEntry("Accept", Arrays.asList("*/*"))
-                .containsEntry("Content-Length", Arrays.asList("25"))
-                .containsEntry("Content-Type", Arrays.asList("application/x-www-form-urlencoded"));
+        assertThat(request.headers.size()).isEqualTo(5);
+        assertThat(request.headers.getAll("Host")).containsExactly("localhost:8080");
+        assertThat(request.headers.getAll("User-Agent")).containsExactly("curl/7.43.0");
+        assertThat(request.headers.getAll("Accept")).containsExactly("*/*");
+        assertThat(request.headers.getAll("Content-Length")).containsExactly("25");
+        assertThat(request.headers.getAll("Content-Type"))
+                .containsExactly("application/x-www-form-urlencoded");
         assertThat(request.contentLength).isEqualTo(25);
         assertThat(request.entity)
                 .isEqualTo(ByteBuffer.wrap("greeting=Hello&name=world".getBytes()));
     }
+
+    @Test
+    void pipelined() throws Exception {
+        final StringBuilder buf = new StringBuilder();
+        buf.append("POST /foo HTTP/1.1\r\n");
+        buf.append("Content-Length: 5\r\n");
+        buf.append("\r\n");
+        buf.append("hello");
+        buf.append("GET /bar HTTP/1.1\r\n");
+        buf.append("Host: localhost:8080\r\n");
+        buf.append("\r\n");
+        final ByteBuffer in = ByteBuffer.wrap(buf.toString().getBytes());
+
+        final HttpRequestParser parser1 = new HttpRequestParser();
+        assertThat(parser1.parse(in)).isTrue();
+        final HttpRequest request1 = parser1.build();
+        assertThat(request1.method).isEqualTo("POST");
+        assertThat(request1.requestTarget).isEqualTo("/foo");
+        assertThat(request1.entity).isEqualTo(ByteBuffer.wrap("hello".getBytes()));
+        assertThat(in.hasRemaining()).isTrue();
+
+        final HttpRequestParser parser2 = new HttpRequestParser();
+        assertThat(parser2.parse(in)).isTrue();
+        final HttpRequest request2 = parser2.build();
+        assertThat(request2.method).isEqualTo("GET");
+        assertThat(request2.requestTarget).isEqualTo("/bar");
+        assertThat(request2.headers.size()).isEqualTo(1);
+        assertThat(request2.headers.getAll("Host")).containsExactly("localhost:8080");
+        assertThat(in.hasRemaining()).isFalse();
+    }
+
+    @Test
+    void reset() throws Exception {
+        final HttpRequestParser parser = new HttpRequestParser();
+        final String s = "PUT /foo HTTP/1.1\r\ncontent-length: 3\r\nX-Custom:  bar \r\n\r\nabc";
+        assertThat(parser.parse(ByteBuffer.wrap(s.getBytes()))).isTrue();
+        final HttpRequest request1 = parser.build();
+        assertThat(request1.method).isSameAs("PUT");
+        assertThat(request1.headers.size()).isEqualTo(2);
+        assertThat(request1.headers.getAll("content-length")).containsExactly("3");
+        assertThat(request1.headers.getAll("X-Custom")).containsExactly("bar");
+        assertThat(request1.contentLength).isEqualTo(3);
+        assertThat(request1.entity).isEqualTo(ByteBuffer.wrap("abc".getBytes()));
+
+        parser.reset();
+        assertThat(parser.parse(ByteBuffer.wrap("GET /bar HTTP/1.0\r\n\r\n".getBytes())))
+                .isTrue();
+        final HttpRequest request2 = parser.build();
+        assertThat(request2.method).isSameAs("GET");
+        assertThat(request2.requestTarget).isEqualTo("/bar");
+        assertThat(request2.httpVersion).isEqualTo("HTTP/1.0");
+        assertThat(request2.headers.isEmpty()).isTrue();
+        assertThat(request2.contentLength).isEqualTo(-1);
+        assertThat(request2.entity).isNull();
+    }
+
+    @Test
+    void streaming() throws Exception {
+        final StringBuilder buf = new StringBuilder();
+        buf.append("POST / HTTP/1.1\r\n");
+        buf.append("Content-Length: 10\r\n");
+        buf.append("\r\n");
+        final HttpRequestParser parser = new HttpRequestParser(4, 1024);
+        assertThat(parser.parse(ByteBuffer.wrap(buf.toString().getBytes()))).isTrue();
+        final HttpRequest request = parser.build();
+        assertThat(request.contentLength).isEqualTo(10);
+        assertThat(request.entity).isNull();
+        assertThat(parser.isBodyPending()).isTrue();
+
+        final ByteBuffer in = ByteBuffer.wrap("0123456789GET".getBytes());
+        in.position(4);
+        assertThat(parser.transferBody(ByteBuffer.wrap("0123".getBytes()))).isFalse();
+        assertThat(parser.transferBody(in)).isTrue();
+        assertThat(in.remaining()).isEqualTo(3);
+        assertThat(parser.isBodyPending()).isFalse();
+
+        final ByteBuffer body = ByteBuffer.allocate(16);
+        while (request.body.read(body) >= 0) {
+        }
+        body.flip();
+        assertThat(body).isEqualTo(ByteBuffer.wrap("0123456789".getBytes()));
+    }
+
+    @Test
+    void chunked() throws Exception {
+        final StringBuilder buf = new StringBuilder();
+        buf.append("POST / HTTP/1.1\r\n");
+        buf.append("Transfer-Encoding: chunked\r\n");
+        buf.append("\r\n");
+        buf.append("5\r\nhello\r\n");
+        buf.append("7;ext=1\r\n, world\r\n");
+        buf.append("0\r\n");
+        buf.append("Trailer: value\r\n");
+        buf.append("\r\n");
+        final HttpRequestParser parser = new HttpRequestParser();
+        final byte[] bytes = buf.toString().getBytes();
+        final ByteBuffer in = ByteBuffer.wrap(bytes, 0, 50);
+        assertThat(parser.parse(in)).isTrue();
+        final HttpRequest request = parser.build();
+        assertThat(request.contentLength).isEqualTo(-1);
+        assertThat(request.entity).isNull();
+        assertThat(parser.transferBody(in)).isFalse();
+        assertThat(parser.transferBody(ByteBuffer.wrap(bytes, 50, bytes.length - 50))).isTrue();
+
+        final ByteBuffer body = ByteBuffer.allocate(16);
+        while (request.body.read(body) >= 0) {
+        }
+        body.flip();
+        assertThat(body).isEqualTo(ByteBuffer.wrap("hello, world".getBytes()));
+    }
+
+    @Test
+    void limits() throws Exception {
+        final HttpRequestParser parser = new HttpRequestParser(Integer.MAX_VALUE,
+                Long.MAX_VALUE, 48, 10);
+        final ByteBuffer header = ByteBuffer.wrap(("GET / HTTP/1.1\r\n"
+                + "X-Long: 0123456789012345678901234567890123456789\r\n\r\n").getBytes());
+        assertThat(statusOf(() -> parser.parse(header))).isEqualTo(431);
+
+        parser.reset();
+        final ByteBuffer body = ByteBuffer
+                .wrap("POST / HTTP/1.1\r\nContent-Length: 11\r\n\r\n".getBytes());
+        assertThat(statusOf(() -> parser.parse(body))).isEqualTo(413);
+
+        parser.reset();
+        final ByteBuffer chunked = ByteBuffer.wrap(
+                "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nb\r\nhello world\r\n"
+                        .getBytes());
+        assertThat(parser.parse(chunked)).isTrue();
+        parser.build();
+        assertThat(statusOf(() -> parser.transferBody(chunked))).isEqualTo(413);
+
+        parser.reset();
+        final ByteBuffer invalid = ByteBuffer
+                .wrap("POST / HTTP/1.1\r\nContent-Length: x\r\n\r\n".getBytes());
+        assertThat(statusOf(() -> parser.parse(invalid))).isEqualTo(400);
+    }
+
+    @Test
+    void requestLineAndHeaderCountLimits() throws Exception {
+        final HttpRequestParser parser = new HttpRequestParser(Integer.MAX_VALUE,
+                Long.MAX_VALUE, 64, Long.MAX_VALUE, 24, 2);
+        final ByteBuffer requestLine = ByteBuffer
+                .wrap("GET /0123456789 HTTP/1.1\r\n\r\n".getBytes());
+        assertThat(statusOf(() -> parser.parse(requestLine))).isEqualTo(414);
+
+        parser.reset();
+        final ByteBuffer headers = ByteBuffer
+                .wrap("GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\nC: 3\r\n\r\n".getBytes());
+        assertThat(statusOf(() -> parser.parse(headers))).isEqualTo(431);
+
+        parser.reset();
+        final ByteBuffer chunkLine = ByteBuffer.wrap(
+                ("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                        + "5;ext=0123456789012345678901234567890123456789012345678901234567890\r\n")
+                                .getBytes());
+        assertThat(parser.parse(chunkLine)).isTrue();
+        parser.build();
+        assertThat(statusOf(() -> parser.transferBody(chunkLine))).isEqualTo(400);
+    }
+
+    @Test
+    void malformed() throws Exception {
+        assertThat(statusOf("HELLO\r\n\r\n")).isEqualTo(400);
+        assertThat(statusOf("GET /\r\n\r\n")).isEqualTo(400);
+        assertThat(statusOf("GET / HTTP/1.1 x\r\n\r\n")).isEqualTo(400);
+        assertThat(statusOf("GET  / HTTP/1.1\r\n\r\n")).isEqualTo(400);
+        assertThat(statusOf("GET / HTTP/2.0\r\n\r\n")).isEqualTo(400);
+        assertThat(statusOf("GET / HTTP/1.1\r\nFoo\r\n\r\n")).isEqualTo(400);
+        assertThat(statusOf("GET / HTTP/1.1\r\nConnection\r\n\r\n")).isEqualTo(400);
+        assertThat(statusOf("GET / HTTP/1.1\r\n: x\r\n\r\n")).isEqualTo(400);
+        assertThat(statusOf("GET / HTTP/1.1\r\nHost : x\r\n\r\n")).isEqualTo(400);
+    }
+
+    @Test
+    void ambiguousBodyLength() throws Exception {
+        assertThat(statusOf("POST / HTTP/1.1\r\nContent-Length: 1\r\nContent-Length: 2\r\n\r\n"))
+                .isEqualTo(400);
+        assertThat(statusOf("POST / HTTP/1.1\r\nContent-Length: 1\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n")).isEqualTo(400);
+        assertThat(statusOf("POST / HTTP/1.1\r\nTransfer-Encoding: xchunked\r\n\r\n"))
+                .isEqualTo(400);
+        assertThat(statusOf("POST / HTTP/1.1\r\nTransfer-Encoding: chunked, gzip\r\n\r\n"))
+                .isEqualTo(400);
+        assertThat(statusOf("POST / HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n"))
+                .isEqualTo(501);
+
+        final HttpRequestParser parser = new HttpRequestParser();
+        final ByteBuffer same = ByteBuffer.wrap(("\r\nPOST / HTTP/1.1\r\nContent-Length: 2\r\n"
+                + "Content-Length: 2\r\n\r\nok").getBytes());
+        assertThat(parser.parse(same)).isTrue();
+        assertThat(parser.build().entity).isEqualTo(ByteBuffer.wrap("ok".getBytes()));
+    }
+
+    private static int statusOf(final String request) {
+        final HttpRequestParser parser = new HttpRequestParser();
+        return statusOf(() -> parser.parse(ByteBuffer.wrap(request.getBytes())));
+    }
+
+    private static int statusOf(final ThrowingCallable callable) {
+        final Throwable t = catchThrowable(callable);
+        assertThat(t).isInstanceOf(HttpRequestException.class);
+        return ((HttpRequestException) t).statusCode;
+    }
 }
@@ -0,0 +1,91 @@
+package httpserver;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class HttpResponseFormatterTest {
+
+    @Test
+    void format() throws Exception {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaders.CONTENT_TYPE, "text/plain");
+        final HttpResponse response = new HttpResponse(200, "OK", headers,
+                ByteBuffer.wrap("hello".getBytes()));
+        final String s = decode(new HttpResponseFormatter().format(response));
+        assertThat(s).startsWith("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n"
+                + "Content-Length: 5\r\nDate: ")
+                .matches("(?s).*\r\nDate: \\w{3}, \\d{2} \\w{3} \\d{4} "
+                        + "\\d{2}:\\d{2}:\\d{2} GMT\r\n.*")
+                .endsWith("\r\nServer: backpaper0-http-server\r\n\r\nhello");
+    }
+
+    @Test
+    void customReasonPhrase() throws Exception {
+        final HttpResponse response = new HttpResponse(200, "Fine", new HttpHeaders(),
+                ByteBuffer.allocate(1234567));
+        final String s = decode(new HttpResponseFormatter().formatHead(response, "HTTP/1.0",
+                false));
+        assertThat(s).startsWith("HTTP/1.1 200 Fine\r\nContent-Length: 1234567\r\n")
+                .endsWith("Connection: close\r\n\r\n");
+    }
+
+    @Test
+    void headerBlock() throws Exception {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaders.CONTENT_TYPE, "application/json");
+        headers.add(HttpHeaders.SERVER, "test");
+        final HeaderBlock block = HeaderBlock.of(headers);
+        final HttpResponse response = new HttpResponse(200, "OK", block,
+                ByteBuffer.wrap("{}".getBytes()));
+        response.headers.add("X-Request-Id", "1");
+        final String s = decode(new HttpResponseFormatter().formatHead(response));
+        assertThat(s).startsWith("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n"
+                + "Server: test\r\nX-Request-Id: 1\r\nContent-Length: 2\r\n")
+                .doesNotContain("backpaper0");
+
+        final HttpHeaders invalid = new HttpHeaders();
+        invalid.add("content-length", "2");
+        assertThatThrownBy(() -> HeaderBlock.of(invalid))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void emptyResponse() throws Exception {
+        assertThat(formatHead(new HttpResponse(200, "OK", new HttpHeaders())))
+                .startsWith("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n");
+        assertThat(formatHead(new HttpResponse(404, "Not Found",
+                HeaderBlock.of(new HttpHeaders()), (ByteBuffer) null)))
+                        .contains("\r\nContent-Length: 0\r\n");
+        for (final int statusCode : new int[] { 100, 204, 304 }) {
+            assertThat(formatHead(new HttpResponse(statusCode, "", new HttpHeaders())))
+                    .doesNotContain("Content-Length");
+        }
+
+        // ボディを持たないステータスではエンティティや長さのヘッダーがあっても長さを付けない
+        final HttpHeaders framing = new HttpHeaders();
+        framing.add(HttpHeaders.CONTENT_LENGTH, "5");
+        framing.add(HttpHeaders.TRANSFER_ENCODING, "chunked");
+        assertThat(formatHead(new HttpResponse(304, "Not Modified", framing,
+                ByteBuffer.wrap("hello".getBytes()))))
+                        .doesNotContain("Content-Length").doesNotContain("Transfer-Encoding");
+
+        final HttpHeaders head = new HttpHeaders();
+        head.add(HttpHeaders.CONTENT_LENGTH, "42");
+        assertThat(formatHead(new HttpResponse(200, "OK", head)))
+                .contains("Content-Length: 42\r\n").doesNotContain("Content-Length: 0");
+    }
+
+    private static String formatHead(final HttpResponse response) {
+        return decode(new HttpResponseFormatter().formatHead(response));
+    }
+
+    private static String decode(final ByteBuffer buf) {
+        final byte[] bs = new byte[buf.remaining()];
+        buf.get(bs);
+        return new String(bs, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,810 @@
+package httpserver;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * ループバックでサーバーを起動し、ソケットからリクエストを送って確かめる。
+ */
+class HttpServerTest {
+
+    private final List<Client> clients = new ArrayList<>();
+    /**
+     * {@link #pending(HttpRequest)}が返した、まだ完了していないレスポンス。
+     */
+    private final LinkedBlockingQueue<CompletableFuture<HttpResponse>> pending =
+            new LinkedBlockingQueue<>();
+    private HttpServer server;
+    private int port;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (final Client client : clients) {
+            client.close();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    void keepAlive() throws Exception {
+        start(HttpServer.builder(HttpServerTest::echo));
+        final Client client = connect();
+        for (int i = 0; i < 3; i++) {
+            client.send("GET /" + i + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            final Response response = client.read();
+            assertThat(response.status).isEqualTo(200);
+            assertThat(response.body).isEqualTo("GET /" + i);
+        }
+    }
+
+    @Test
+    void pipelining() throws Exception {
+        start(HttpServer.builder(HttpServerTest::echo));
+        final Client client = connect();
+        // 1回の書き込みに複数のリクエストを詰め、ボディの直後に次のリクエストを続ける
+        client.send("GET /a HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "POST /b HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nhello"
+                + "GET /c HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        assertThat(client.read().body).isEqualTo("GET /a");
+        assertThat(client.read().body).isEqualTo("POST /b hello");
+        assertThat(client.read().body).isEqualTo("GET /c");
+
+        // 1つのリクエストが複数の書き込みに分かれても組み立てる
+        client.send("GET /d HTTP/1.1\r\nHo");
+        Thread.sleep(50);
+        client.send("st: localhost\r\n\r\n");
+        assertThat(client.read().body).isEqualTo("GET /d");
+    }
+
+    @Test
+    void streamingRequestBody() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        start(HttpServer.builder(request -> {
+            started.countDown();
+            proceed.await(5, TimeUnit.SECONDS);
+            final CRC32 crc = new CRC32();
+            final byte[] bs = Channels.newInputStream(request.body).readAllBytes();
+            crc.update(bs);
+            return text(200, "OK", bs.length + " " + Long.toHexString(crc.getValue()));
+        }).dispatchMode(DispatchMode.bounded(1, 1)).maxBufferedEntitySize(1024)
+                .requestBodyBufferSize(8 * 1024).receiveBufferSize(16 * 1024));
+        final Client client = connect();
+        client.socket.setSendBufferSize(16 * 1024);
+        final byte[] body = new byte[4 * 1024 * 1024];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(body);
+        client.send("POST / HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + body.length
+                + "\r\n\r\n");
+        final CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+            try {
+                client.out.write(body);
+                client.out.flush();
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // ハンドラーが読まない間はソケットの読み込みを止めるので、クライアントは送り終えられない
+        assertThatThrownBy(() -> sent.get(300, TimeUnit.MILLISECONDS))
+                .isInstanceOf(TimeoutException.class);
+        proceed.countDown();
+        sent.get(5, TimeUnit.SECONDS);
+        assertThat(client.read().body)
+                .isEqualTo(body.length + " " + Long.toHexString(crc.getValue()));
+    }
+
+    @Test
+    void emptyRequestBody() throws Exception {
+        start(HttpServer.builder(request -> {
+            final int read = request.body.read(ByteBuffer.allocate(16));
+            return text(200, "OK", String.valueOf(read));
+        }));
+        final Client client = connect();
+        client.send("GET / HTTP/1.0\r\n\r\n");
+        assertThat(client.read().body).isEqualTo("-1");
+    }
+
+    @Test
+    void reusePort() throws Exception {
+        final int workers = 3;
+        server = HttpServer.builder(HttpServerTest::echo).host("127.0.0.1").port(0)
+                .reusePort(true).ioWorkers(workers).build();
+        server.start();
+        port = server.localPort();
+        assertThat(port).isPositive();
+        // 接続はカーネルが各Workerのソケットへ振り分けるので、十分な数の接続を張る
+        for (int i = 0; i < 64; i++) {
+            try (Client client = connect()) {
+                client.send("GET /" + i + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertThat(client.read().body).isEqualTo("GET /" + i);
+            }
+        }
+        assertThat(server.metrics().workers()).hasSize(workers);
+        for (final WorkerMetrics worker : server.metrics().workers()) {
+            assertThat(worker.requests()).isPositive();
+        }
+    }
+
+    @Test
+    void executorDispatch() throws Exception {
+        final LinkedBlockingQueue<String> threads = new LinkedBlockingQueue<>();
+        start(HttpServer.builder(request -> {
+            threads.add(Thread.currentThread().getName());
+            return echo(request);
+        }).dispatchMode(DispatchMode.bounded(2, 16)));
+        final Client client = connect();
+        client.send("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        // ハンドラーはWorkerの外で実行され、レスポンスはWorkerへ戻して書き込む
+        assertThat(client.read().body).isEqualTo("GET /");
+        assertThat(threads.poll(5, TimeUnit.SECONDS)).startsWith("http-handler-");
+    }
+
+    @Test
+    void executorDispatchInRequestOrder() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final CountDownLatch second = new CountDownLatch(1);
+            start(HttpServer.builder(request -> {
+                if (request.requestTarget.equals("/a")) {
+                    // /bのハンドラーが戻るまで待つ
+                    second.await(5, TimeUnit.SECONDS);
+                } else {
+                    second.countDown();
+                }
+                return echo(request);
+            }).dispatchMode(DispatchMode.executor(executor)));
+            final Client client = connect();
+            client.send("GET /a HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /b HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertThat(client.read().body).isEqualTo("GET /a");
+            assertThat(client.read().body).isEqualTo("GET /b");
+            assertThat(second.getCount()).isZero();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void executorRejection() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        start(HttpServer.builder(request -> {
+            release.await(5, TimeUnit.SECONDS);
+            return echo(request);
+        }).dispatchMode(DispatchMode.bounded(1, 1)));
+        final Client client = connect();
+        // 1つ目は実行中、2つ目はキューで待ち、3つ目は受け付けられない
+        client.send("GET /a HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET /b HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET /c HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (server.metrics().getShedRequests() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        assertThat(client.read().body).isEqualTo("GET /a");
+        assertThat(client.read().body).isEqualTo("GET /b");
+        final Response rejected = client.read();
+        assertThat(rejected.status).isEqualTo(503);
+        assertThat(rejected.headers.get(HttpHeaders.RETRY_AFTER)).isEqualTo("1");
+    }
+
+    @Test
+    void bodylessResponses() throws Exception {
+        final String large = "x".repeat(5000);
+        start(HttpServer.builder(request -> request.requestTarget.equals("/no-content")
+                ? text(204, "No Content", large)
+                : text(200, "OK", large)));
+        final Client client = connect();
+        client.send("HEAD / HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET /no-content HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        // HEADにはGETと同じ長さを返すが、ボディは書き込まない
+        final Response head = client.readHead();
+        assertThat(head.status).isEqualTo(200);
+        assertThat(head.headers.get(HttpHeaders.CONTENT_LENGTH)).isEqualTo("5000");
+        final Response noContent = client.readHead();
+        assertThat(noContent.status).isEqualTo(204);
+        assertThat(noContent.headers.get(HttpHeaders.CONTENT_LENGTH)).isNull();
+        assertThat(client.read().body).isEqualTo(large);
+    }
+
+    @Test
+    void fileBody() throws Exception {
+        final Path root = Files.createTempDirectory("static");
+        final Path file = root.resolve("hello.txt");
+        try {
+            final String content = "Hello, world! ".repeat(10000);
+            Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+            start(HttpServer.builder(new StaticFileHandler(root)));
+            final Client client = connect();
+            client.send("GET /hello.txt HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /hello.txt HTTP/1.1\r\nHost: localhost\r\nRange: bytes=7-11\r\n\r\n"
+                    + "HEAD /hello.txt HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /hello.txt HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            final Response whole = client.read();
+            assertThat(whole.status).isEqualTo(200);
+            assertThat(whole.body).isEqualTo(content);
+            final Response range = client.read();
+            assertThat(range.status).isEqualTo(206);
+            assertThat(range.body).isEqualTo("world");
+            final Response head = client.readHead();
+            assertThat(head.headers.get(HttpHeaders.CONTENT_LENGTH))
+                    .isEqualTo(String.valueOf(content.length()));
+            final Response again = client.read();
+            assertThat(again.body).isEqualTo(content);
+        } finally {
+            Files.delete(file);
+            Files.delete(root);
+        }
+    }
+
+    @Test
+    void maxConnections() throws Exception {
+        start(HttpServer.builder(HttpServerTest::echo).maxConnections(1));
+        final Client first = connect();
+        first.send("GET /first HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        assertThat(first.read().body).isEqualTo("GET /first");
+
+        // 上限に達している間は受け付けないので、2つ目の接続のリクエストは処理されない
+        final Client second = connect();
+        second.send("GET /second HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        second.socket.setSoTimeout(300);
+        assertThatThrownBy(second::read).isInstanceOf(SocketTimeoutException.class);
+
+        first.close();
+        second.socket.setSoTimeout(5000);
+        assertThat(second.read().body).isEqualTo("GET /second");
+    }
+
+    @Test
+    void concurrencyLimit() throws Exception {
+        start(HttpServer.asyncBuilder(this::pending)
+                .concurrencyLimiter(ConcurrencyLimiter.fixed(1)));
+        final Client first = connect();
+        first.send("GET /first HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        final CompletableFuture<HttpResponse> future = pending.poll(5, TimeUnit.SECONDS);
+
+        // ハンドラーを呼ばずに503を返す
+        final Client second = connect();
+        second.send("GET /second HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        final Response rejected = second.read();
+        assertThat(rejected.status).isEqualTo(503);
+        assertThat(rejected.headers.get(HttpHeaders.RETRY_AFTER)).isEqualTo("1");
+        assertThat(pending).isEmpty();
+
+        future.complete(text(200, "OK", "first"));
+        assertThat(first.read().body).isEqualTo("first");
+        second.send("GET /second HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        pending.poll(5, TimeUnit.SECONDS).complete(text(200, "OK", "second"));
+        assertThat(second.read().body).isEqualTo("second");
+    }
+
+    @Test
+    void headerReadTimeout() throws Exception {
+        start(HttpServer.builder(HttpServerTest::echo)
+                .headerReadTimeout(Duration.ofMillis(300)));
+        final Client client = connect();
+        client.send("GET / HTTP/1.1\r\nHost: localhost\r\n");
+        final Response response = client.read();
+        assertThat(response.status).isEqualTo(408);
+        assertThat(response.headers.get(HttpHeaders.CONNECTION)).isEqualTo("close");
+        assertThat(client.isClosedByServer()).isTrue();
+    }
+
+    @Test
+    void bodyReadTimeout() throws Exception {
+        start(HttpServer.builder(HttpServerTest::echo)
+                .bodyReadTimeout(Duration.ofMillis(300)));
+        final Client client = connect();
+        client.send("POST / HTTP/1.1\r\nHost: localhost\r\nContent-Length: 10\r\n\r\nabc");
+        final Response response = client.read();
+        assertThat(response.status).isEqualTo(408);
+        assertThat(client.isClosedByServer()).isTrue();
+    }
+
+    @Test
+    void headerTooLarge() throws Exception {
+        start(HttpServer.builder(HttpServerTest::echo).maxHeaderSize(1024));
+        final Client client = connect();
+        client.send("GET / HTTP/1.1\r\nHost: localhost\r\nX-Large: " + "x".repeat(2048)
+                + "\r\n\r\n");
+        assertThat(client.read().status).isEqualTo(431);
+        assertThat(client.isClosedByServer()).isTrue();
+    }
+
+    @Test
+    void connectionResetRightAfterConnect() throws Exception {
+        start(HttpServer.builder(HttpServerTest::echo));
+        for (int i = 0; i < 20; i++) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                // 閉じるときにRSTを送る
+                socket.setSoLinger(true, 0);
+            }
+        }
+        // リセットされた接続があっても受け付けを続ける
+        for (int i = 0; i < 3; i++) {
+            final Client client = connect();
+            client.send("GET /" + i + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertThat(client.read().body).isEqualTo("GET /" + i);
+        }
+    }
+
+    @Test
+    void requestTimeout() throws Exception {
+        start(HttpServer.asyncBuilder(this::pending).requestTimeout(Duration.ofMillis(300)));
+        final Client client = connect();
+        client.send("GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        final CompletableFuture<HttpResponse> slow = pending.poll(5, TimeUnit.SECONDS);
+        assertThat(client.read().status).isEqualTo(504);
+        assertThat(slow.isCancelled()).isTrue();
+
+        // 504を返した後も接続は使える
+        client.send("GET /fast HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        pending.poll(5, TimeUnit.SECONDS).complete(text(200, "OK", "fast"));
+        assertThat(client.read().body).isEqualTo("fast");
+    }
+
+    @Test
+    void asyncResponsesInRequestOrder() throws Exception {
+        start(HttpServer.asyncBuilder(this::pending));
+        final Client client = connect();
+        client.send("GET /a HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET /b HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        final CompletableFuture<HttpResponse> a = pending.poll(5, TimeUnit.SECONDS);
+        final CompletableFuture<HttpResponse> b = pending.poll(5, TimeUnit.SECONDS);
+        // 後のリクエストが先に完了しても、レスポンスはリクエストの順に返す
+        CompletableFuture.runAsync(() -> b.complete(text(200, "OK", "b"))).get();
+        CompletableFuture.runAsync(() -> a.complete(text(200, "OK", "a"))).get();
+        assertThat(client.read().body).isEqualTo("a");
+        assertThat(client.read().body).isEqualTo("b");
+    }
+
+    @Test
+    void shutdownGracefully() throws Exception {
+        start(HttpServer.asyncBuilder(this::pending));
+        final Client idle = connect();
+        idle.send("GET /idle HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        pending.poll(5, TimeUnit.SECONDS).complete(text(200, "OK", "idle"));
+        assertThat(idle.read().body).isEqualTo("idle");
+        final Client busy = connect();
+        busy.send("GET /busy HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        final CompletableFuture<HttpResponse> future = pending.poll(5, TimeUnit.SECONDS);
+
+        final CompletableFuture<Void> drained = server.shutdownGracefully(Duration.ofSeconds(5));
+        // リクエストを処理していない接続はすぐに閉じ、新しい接続は受け付けない
+        assertThat(idle.isClosedByServer()).isTrue();
+        assertThat(isNotServed()).isTrue();
+        assertThat(drained).isNotDone();
+
+        // 処理中のリクエストにはConnection: closeを付けて返してから閉じる
+        future.complete(text(200, "OK", "busy"));
+        final Response response = busy.read();
+        assertThat(response.body).isEqualTo("busy");
+        assertThat(response.headers.get(HttpHeaders.CONNECTION)).isEqualTo("close");
+        assertThat(busy.isClosedByServer()).isTrue();
+        drained.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void connectWhileShuttingDown() throws Exception {
+        start(HttpServer.asyncBuilder(this::pending));
+        final Client busy = connect();
+        busy.send("GET /busy HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        final CompletableFuture<HttpResponse> future = pending.poll(5, TimeUnit.SECONDS);
+
+        final CompletableFuture<Void> drained = server.shutdownGracefully(Duration.ofSeconds(5));
+        // 受け付けを止める前後に接続しても、アイドルタイムアウトまで残らずに閉じられる
+        for (int i = 0; i < 20; i++) {
+            assertThat(isNotServed()).isTrue();
+        }
+        assertThat(pending).isEmpty();
+        future.complete(text(200, "OK", "busy"));
+        assertThat(busy.read().body).isEqualTo("busy");
+        drained.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void shutdownGracefullyTimeout() throws Exception {
+        start(HttpServer.asyncBuilder(this::pending));
+        final Client client = connect();
+        client.send("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        pending.poll(5, TimeUnit.SECONDS);
+        final CompletableFuture<Void> drained = server
+                .shutdownGracefully(Duration.ofMillis(300));
+        assertThatThrownBy(() -> drained.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(TimeoutException.class);
+        assertThat(client.isClosedByServer()).isTrue();
+    }
+
+    @Test
+    void writeBufferWaterMarks() throws Exception {
+        final ByteBuffer entity = ByteBuffer.allocate(256 * 1024);
+        final AtomicInteger handled = new AtomicInteger();
+        start(HttpServer.builder(request -> {
+            handled.incrementAndGet();
+            return new HttpResponse(200, "OK", new HttpHeaders(), entity.duplicate());
+        }).writeBufferWaterMarks(16 * 1024, 32 * 1024));
+        final Client client = connect();
+        final int requests = 100;
+        client.send("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".repeat(requests));
+
+        // クライアントが読まない間は書き込みが溜まり、続くリクエストを処理しない
+        Thread.sleep(300);
+        assertThat(handled.get()).isLessThan(requests / 2);
+        for (int i = 0; i < requests; i++) {
+            assertThat(client.read().body).hasSize(entity.capacity());
+        }
+        assertThat(handled.get()).isEqualTo(requests);
+    }
+
+    @Test
+    void maxPipelinedRequests() throws Exception {
+        start(HttpServer.asyncBuilder(this::pending).maxPipelinedRequests(2));
+        final Client client = connect();
+        final int requests = 10;
+        client.send("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".repeat(requests));
+        final List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+        futures.add(pending.poll(5, TimeUnit.SECONDS));
+        futures.add(pending.poll(5, TimeUnit.SECONDS));
+        assertThat(pending.poll(300, TimeUnit.MILLISECONDS)).isNull();
+
+        // レスポンスを返すと残りのリクエストを読み進める
+        for (int i = 0; i < requests; i++) {
+            if (i >= 2) {
+                futures.add(pending.poll(5, TimeUnit.SECONDS));
+            }
+            futures.get(i).complete(text(200, "OK", String.valueOf(i)));
+        }
+        for (int i = 0; i < requests; i++) {
+            assertThat(client.read().body).isEqualTo(String.valueOf(i));
+        }
+    }
+
+    @Test
+    void chunkedBodyWritability() throws Exception {
+        final LinkedBlockingQueue<ChunkedBody> bodies = new LinkedBlockingQueue<>();
+        start(HttpServer.builder(request -> {
+            final ChunkedBody body = new ChunkedBody();
+            bodies.add(body);
+            return new HttpResponse(200, "OK", new HttpHeaders(), body);
+        }).writeBufferWaterMarks(16 * 1024, 32 * 1024));
+        final Client client = connect();
+        client.send("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        final ChunkedBody body = bodies.poll(5, TimeUnit.SECONDS);
+        final CountDownLatch writable = new CountDownLatch(1);
+        body.setWritabilityListener(writable::countDown);
+
+        // クライアントが読まないので、いずれ書き込みを控えるよう求められる
+        final ByteBuffer chunk = ByteBuffer.allocate(1024);
+        long written = 0;
+        while (body.isWritable() && written < 64 * 1024 * 1024) {
+            body.write(chunk.duplicate());
+            written += chunk.capacity();
+        }
+        assertThat(body.isWritable()).isFalse();
+
+        final CompletableFuture<Response> response = CompletableFuture.supplyAsync(() -> {
+            try {
+                return client.read();
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        assertThat(writable.await(5, TimeUnit.SECONDS)).isTrue();
+        body.close();
+        assertThat(response.get(5, TimeUnit.SECONDS).body).hasSize((int) written);
+    }
+
+    @Test
+    void compression() throws Exception {
+        final String text = "Hello, world! ".repeat(1000);
+        start(HttpServer.builder(request -> {
+            final String contentType = request.requestTarget.equals("/png") ? "image/png"
+                    : "text/plain";
+            final String entity = request.requestTarget.equals("/small") ? "small" : text;
+            final HttpHeaders headers = new HttpHeaders();
+            headers.add(HttpHeaders.CONTENT_TYPE, contentType);
+            return new HttpResponse(200, "OK", headers,
+                    ByteBuffer.wrap(entity.getBytes(StandardCharsets.UTF_8)));
+        }).compression(true).compressionMinSize(1024));
+        final Client client = connect();
+
+        // Accept-Encodingで受け付けるコーディングを選ぶ
+        client.send("GET / HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: deflate, gzip\r\n\r\n");
+        final Response gzip = client.read();
+        assertThat(gzip.headers.get(HttpHeaders.CONTENT_ENCODING)).isEqualTo("gzip");
+        assertThat(gzip.headers.get(HttpHeaders.VARY)).isEqualTo("Accept-Encoding");
+        assertThat(gzip.entity.length).isLessThan(text.length());
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip.entity))) {
+            assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo(text);
+        }
+
+        client.send("GET / HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: deflate\r\n\r\n");
+        final Response deflate = client.read();
+        assertThat(deflate.headers.get(HttpHeaders.CONTENT_ENCODING)).isEqualTo("deflate");
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(deflate.entity))) {
+            assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo(text);
+        }
+
+        // 圧縮しない場合もキャッシュがコーディングを区別できるようにVaryを付ける
+        client.send("GET / HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: br\r\n\r\n"
+                + "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        for (int i = 0; i < 2; i++) {
+            final Response identity = client.read();
+            assertThat(identity.headers.get(HttpHeaders.CONTENT_ENCODING)).isNull();
+            assertThat(identity.headers.get(HttpHeaders.VARY)).isEqualTo("Accept-Encoding");
+            assertThat(identity.body).isEqualTo(text);
+        }
+
+        // compressionMinSizeより小さいエンティティと、圧縮しないContent-Typeはそのまま返す
+        client.send("GET /small HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\n\r\n"
+                + "GET /png HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\n\r\n");
+        final Response small = client.read();
+        assertThat(small.headers.get(HttpHeaders.CONTENT_ENCODING)).isNull();
+        assertThat(small.headers.get(HttpHeaders.VARY)).isNull();
+        assertThat(small.body).isEqualTo("small");
+        final Response png = client.read();
+        assertThat(png.headers.get(HttpHeaders.CONTENT_ENCODING)).isNull();
+        assertThat(png.headers.get(HttpHeaders.VARY)).isNull();
+        assertThat(png.body).isEqualTo(text);
+    }
+
+    @Test
+    void buffersReleasedWhenClosedWhileReading() throws Exception {
+        start(HttpServer.builder(HttpServerTest::echo));
+        final BufferPool pool = server.bufferPools().get(0);
+        final String partialHeader = "GET / HTTP/1.1\r\nHost: loc";
+        final String partialBody = "POST / HTTP/1.1\r\nHost: localhost\r\n"
+                + "Content-Length: 100\r\n\r\nabc";
+        final Client header = connect();
+        header.send(partialHeader);
+        final Client body = connect();
+        body.send(partialBody);
+        // サーバーが途中まで読んでから閉じる
+        final long sent = partialHeader.length() + partialBody.length();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (server.metrics().getBytesRead() < sent && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(server.metrics().getBytesRead()).isEqualTo(sent);
+        header.close();
+        body.close();
+        awaitClosedConnections(2);
+        assertReleased(pool);
+    }
+
+    @Test
+    void buffersReleasedWhenClosedWhileWriting() throws Exception {
+        final ByteBuffer entity = ByteBuffer.allocate(8 * 1024 * 1024);
+        start(HttpServer.builder(
+                request -> new HttpResponse(200, "OK", new HttpHeaders(), entity.duplicate())));
+        final BufferPool pool = server.bufferPools().get(0);
+        final Client client = connect();
+        client.send("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        assertThat(client.readHead().status).isEqualTo(200);
+        // ヘッダーを書き込んだバッファはボディを書き終えるまで返さない
+        assertThat(pool.inUse()).isGreaterThan(0);
+        // 閉じるときにRSTを送り、サーバーの次の書き込みを失敗させる
+        client.socket.setSoLinger(true, 0);
+        client.close();
+        awaitClosedConnections(1);
+        assertReleased(pool);
+    }
+
+    private void start(final HttpServer.Builder builder) throws IOException {
+        server = builder.host("127.0.0.1").port(0).ioWorkers(1).build();
+        server.start();
+        port = server.localPort();
+    }
+
+    private void awaitClosedConnections(final long expected) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (server.metrics().getClosedConnections() < expected
+                && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(server.metrics().getClosedConnections()).isEqualTo(expected);
+    }
+
+    /**
+     * 貸し出したバッファが全て一度ずつプールへ返されていることを確かめる。
+     */
+    private static void assertReleased(final BufferPool pool) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pool.inUse() != 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(pool.inUse()).isEqualTo(0);
+        // 二重に返していればプールの数が確保した数を超える
+        assertThat((long) pool.pooled()).isEqualTo(pool.allocated());
+        assertThat(pool.discarded()).isEqualTo(0);
+    }
+
+    private Client connect() throws IOException {
+        final Client client = new Client(new Socket(InetAddress.getLoopbackAddress(), port));
+        clients.add(client);
+        return client;
+    }
+
+    private CompletionStage<HttpResponse> pending(final HttpRequest request) {
+        final CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        pending.add(future);
+        return future;
+    }
+
+    /**
+     * 接続を拒否されるか、リクエストを送る前にサーバーに閉じられればtrue。
+     */
+    private boolean isNotServed() throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(5000);
+            return socket.getInputStream().read() < 0;
+        } catch (final SocketException e) {
+            // 拒否されたか、受け付けられる前にServerSocketChannelが閉じられてリセットされた
+            return true;
+        }
+    }
+
+    private static HttpResponse echo(final HttpRequest request) {
+        String text = request.method + " " + request.requestTarget;
+        if (request.entity != null) {
+            text += " " + StandardCharsets.UTF_8.decode(request.entity.duplicate());
+        }
+        return text(200, "OK", text);
+    }
+
+    private static HttpResponse text(final int statusCode, final String reasonPhrase,
+            final String text) {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaders.CONTENT_TYPE, "text/plain");
+        return new HttpResponse(statusCode, reasonPhrase, headers,
+                ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static final class Response {
+
+        final int status;
+        final HttpHeaders headers;
+        final byte[] entity;
+        final String body;
+
+        Response(final int status, final HttpHeaders headers, final byte[] entity) {
+            this.status = status;
+            this.headers = headers;
+            this.entity = entity;
+            this.body = new String(entity, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Content-Lengthかchunkedで区切られたレスポンスを1つずつ読むクライアント。
+     */
+    private static final class Client implements AutoCloseable {
+
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+
+        Client(final Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = socket.getInputStream();
+            this.out = socket.getOutputStream();
+            socket.setSoTimeout(5000);
+        }
+
+        void send(final String request) throws IOException {
+            out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+        }
+
+        Response read() throws IOException {
+            final Response head = readHead();
+            final HttpHeaders headers = head.headers;
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if (headers.containsToken(HttpHeaders.TRANSFER_ENCODING, "chunked")) {
+                int size;
+                while ((size = Integer.parseInt(readLine(), 16)) > 0) {
+                    body.write(readBytes(size));
+                    readLine();
+                }
+                readLine();
+            } else {
+                final String contentLength = headers.get(HttpHeaders.CONTENT_LENGTH);
+                body.write(readBytes(Integer.parseInt(contentLength)));
+            }
+            return new Response(head.status, headers, body.toByteArray());
+        }
+
+        /**
+         * ボディを持たないレスポンスのステータスラインとヘッダーだけを読む。
+         */
+        Response readHead() throws IOException {
+            final String statusLine = readLine();
+            final HttpHeaders headers = new HttpHeaders();
+            String line;
+            while ((line = readLine()).isEmpty() == false) {
+                final int colon = line.indexOf(':');
+                headers.add(line.substring(0, colon), line.substring(colon + 1).trim());
+            }
+            return new Response(Integer.parseInt(statusLine.split(" ")[1]), headers,
+                    new byte[0]);
+        }
+
+        /**
+         * サーバーが接続を閉じていればtrue。
+         */
+        boolean isClosedByServer() throws IOException {
+            return in.read() < 0;
+        }
+
+        private String readLine() throws IOException {
+            final StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    throw new IOException("connection closed");
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        private byte[] readBytes(final int size) throws IOException {
+            final byte[] bs = in.readNBytes(size);
+            if (bs.length < size) {
+                throw new IOException("connection closed");
+            }
+            return bs;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
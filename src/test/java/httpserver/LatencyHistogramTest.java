@@ -0,0 +1,32 @@
+package httpserver;
+
+import static org.assertj.core.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+
+    @Test
+    void percentile() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.valueAtPercentile(50)).isEqualTo(0);
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertThat(histogram.count()).isEqualTo(1000);
+        assertThat(histogram.sum()).isEqualTo(500_500_000L);
+        assertThat(histogram.valueAtPercentile(50)).isBetween(500_000L, 500_000L * 17 / 16);
+        assertThat(histogram.valueAtPercentile(99)).isBetween(990_000L, 990_000L * 17 / 16);
+        assertThat(histogram.valueAtPercentile(100)).isBetween(1_000_000L, 1_000_000L * 17 / 16);
+    }
+
+    @Test
+    void buckets() throws Exception {
+        for (final long value : new long[] { 0, 1, 15, 16, 17, 31, 32, 1000, 123456789,
+                Long.MAX_VALUE }) {
+            final int index = LatencyHistogram.index(value);
+            assertThat(LatencyHistogram.lowerBound(index)).isLessThanOrEqualTo(value);
+            assertThat(LatencyHistogram.upperBound(index)).isGreaterThanOrEqualTo(value);
+        }
+    }
+}
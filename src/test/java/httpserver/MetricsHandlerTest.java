@@ -0,0 +1,31 @@
+package httpserver;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class MetricsHandlerTest {
+
+    @Test
+    void format() throws Exception {
+        final WorkerMetrics worker = new WorkerMetrics("0", new AtomicInteger(2));
+        worker.requests.add(3);
+        worker.latency.record(1_000_000);
+        final ServerMetrics metrics = new ServerMetrics(Arrays.asList(worker,
+                new WorkerMetrics("1", new AtomicInteger(1))));
+        assertThat(metrics.getActiveConnections()).isEqualTo(3);
+        assertThat(metrics.getRequests()).isEqualTo(3);
+
+        final String s = MetricsHandler.format(metrics);
+        assertThat(s).contains("# TYPE httpserver_connections_active gauge\n"
+                + "httpserver_connections_active{worker=\"0\"} 2\n"
+                + "httpserver_connections_active{worker=\"1\"} 1\n")
+                .contains("httpserver_requests_total{worker=\"0\"} 3\n")
+                .contains("# TYPE httpserver_request_duration_seconds summary\n")
+                .contains("httpserver_request_duration_seconds_count{worker=\"0\"} 1\n")
+                .contains("httpserver_request_duration_seconds_sum{worker=\"0\"} 0.001\n");
+    }
+}
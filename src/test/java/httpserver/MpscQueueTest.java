@@ -0,0 +1,62 @@
+package httpserver;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class MpscQueueTest {
+
+    @Test
+    void fifo() throws Exception {
+        final MpscQueue<String> queue = new MpscQueue<>();
+        assertThat(queue.isEmpty()).isTrue();
+        assertThat(queue.poll()).isNull();
+        queue.offer("a");
+        queue.offer("b");
+        assertThat(queue.isEmpty()).isFalse();
+        assertThat(queue.poll()).isEqualTo("a");
+        assertThat(queue.poll()).isEqualTo("b");
+        assertThat(queue.poll()).isNull();
+        assertThat(queue.isEmpty()).isTrue();
+    }
+
+    @Test
+    void multipleProducers() throws Exception {
+        final MpscQueue<Integer> queue = new MpscQueue<>();
+        final int producers = 4;
+        final int count = 100_000;
+        final List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int base = p * count;
+            final Thread t = new Thread(() -> {
+                for (int i = 0; i < count; i++) {
+                    queue.offer(base + i);
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        final int[] last = new int[producers];
+        Arrays.fill(last, -1);
+        int received = 0;
+        while (received < producers * count) {
+            final Integer value = queue.poll();
+            if (value == null) {
+                Thread.onSpinWait();
+                continue;
+            }
+            final int p = value / count;
+            assertThat(value % count).isEqualTo(last[p] + 1);
+            last[p] = value % count;
+            received++;
+        }
+        for (final Thread t : threads) {
+            t.join();
+        }
+        assertThat(queue.poll()).isNull();
+    }
+}
@@ -0,0 +1,158 @@
+package httpserver;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.jupiter.api.Test;
+
+class ResponseCompressorTest {
+
+    private static final String TEXT = "Hello, world! ".repeat(100);
+
+    private final ResponseCompressor compressor = new ResponseCompressor(6, 100,
+            Arrays.asList("text/", "application/json"), 1024 * 1024, 1024 * 1024);
+
+    @Test
+    void gzip() throws Exception {
+        final HttpResponse response = compressor.compress(request("deflate, gzip"),
+                response("text/plain"));
+        assertThat(response.headers.get("Content-Encoding")).isEqualTo("gzip");
+        assertThat(response.headers.get("Vary")).isEqualTo("Accept-Encoding");
+        assertThat(response.entity.remaining()).isLessThan(TEXT.length());
+        assertThat(inflate(new GZIPInputStream(stream(response.entity)))).isEqualTo(TEXT);
+
+        final HttpResponse cached = compressor.compress(request("gzip"), response("text/plain"));
+        assertThat(cached.entity).isSameAs(response.entity);
+    }
+
+    @Test
+    void cacheAdmission() throws Exception {
+        final HttpResponse dynamic = response("text/plain");
+        dynamic.headers.remove("Cache-Control");
+        compressor.compress(request("gzip"), dynamic);
+        assertThat(compressor.cacheBytes()).isZero();
+
+        final HttpResponse noStore = response("text/plain");
+        noStore.headers.set("Cache-Control", "no-store");
+        compressor.compress(request("gzip"), noStore);
+        assertThat(compressor.cacheBytes()).isZero();
+
+        final HttpResponse validated = response("text/plain");
+        validated.headers.remove("Cache-Control");
+        validated.headers.add("Last-Modified", "Sun, 06 Nov 1994 08:49:37 GMT");
+        compressor.compress(request("gzip"), validated);
+        assertThat(compressor.cacheBytes()).isGreaterThan(TEXT.length());
+    }
+
+    @Test
+    void cacheBoundedByBytes() throws Exception {
+        final ResponseCompressor small = new ResponseCompressor(6, 100,
+                Arrays.asList("text/"), TEXT.length() * 2, 1024 * 1024);
+        for (int i = 0; i < 10; i++) {
+            final HttpResponse response = new HttpResponse(200, "OK", new HttpHeaders(),
+                    ByteBuffer.wrap((TEXT + i).getBytes()));
+            response.headers.add("Content-Type", "text/plain");
+            response.headers.add("Cache-Control", "max-age=60");
+            small.compress(request("gzip"), response);
+            assertThat(small.cacheBytes()).isBetween(1L, TEXT.length() * 2L);
+        }
+    }
+
+    @Test
+    void weakenETag() throws Exception {
+        final HttpResponse strong = response("text/plain");
+        strong.headers.add("ETag", "\"abc\"");
+        assertThat(compressor.compress(request("gzip"), strong).headers.get("ETag"))
+                .isEqualTo("W/\"abc\"");
+
+        final HttpResponse weak = response("text/plain");
+        weak.headers.add("ETag", "W/\"abc\"");
+        assertThat(compressor.compress(request("gzip"), weak).headers.get("ETag"))
+                .isEqualTo("W/\"abc\"");
+
+        final HttpHeaders block = new HttpHeaders();
+        block.add("Content-Type", "text/plain");
+        block.add("ETag", "\"abc\"");
+        final HttpResponse precomputed = new HttpResponse(200, "OK", HeaderBlock.of(block),
+                ByteBuffer.wrap(TEXT.getBytes()));
+        final HttpResponse compressed = compressor.compress(request("gzip"), precomputed);
+        assertThat(compressed.headerBlock).isNull();
+        assertThat(compressed.headers.get("ETag")).isEqualTo("W/\"abc\"");
+        assertThat(compressed.headers.get("Content-Type")).isEqualTo("text/plain");
+        assertThat(compressed.headers.get("Content-Encoding")).isEqualTo("gzip");
+
+        final HttpResponse identity = compressor.compress(request(null), strong);
+        assertThat(identity.headers.get("ETag")).isEqualTo("\"abc\"");
+    }
+
+    @Test
+    void deflate() throws Exception {
+        final HttpResponse response = compressor.compress(request("gzip;q=0, deflate"),
+                response("application/json"));
+        assertThat(response.headers.get("Content-Encoding")).isEqualTo("deflate");
+        assertThat(inflate(new InflaterInputStream(stream(response.entity)))).isEqualTo(TEXT);
+    }
+
+    @Test
+    void notCompressed() throws Exception {
+        final HttpResponse identity = compressor.compress(request(null), response("text/plain"));
+        assertThat(identity.headers.get("Content-Encoding")).isNull();
+        assertThat(identity.headers.get("Vary")).isEqualTo("Accept-Encoding");
+
+        final HttpResponse image = response("image/png");
+        assertThat(compressor.compress(request("gzip"), image)).isSameAs(image);
+
+        final HttpResponse small = new HttpResponse(200, "OK", new HttpHeaders(),
+                ByteBuffer.wrap("small".getBytes()));
+        small.headers.add("Content-Type", "text/plain");
+        assertThat(compressor.compress(request("gzip"), small)).isSameAs(small);
+    }
+
+    @Test
+    void accepts() throws Exception {
+        assertThat(ResponseCompressor.accepts(headers("gzip, deflate"), "gzip")).isTrue();
+        assertThat(ResponseCompressor.accepts(headers("GZIP;q=0.5"), "gzip")).isTrue();
+        assertThat(ResponseCompressor.accepts(headers("gzip;q=0"), "gzip")).isFalse();
+        assertThat(ResponseCompressor.accepts(headers("*"), "gzip")).isTrue();
+        assertThat(ResponseCompressor.accepts(headers("*, gzip;q=0"), "gzip")).isFalse();
+        assertThat(ResponseCompressor.accepts(headers("br"), "gzip")).isFalse();
+        assertThat(ResponseCompressor.accepts(new HttpHeaders(), "gzip")).isFalse();
+    }
+
+    private static HttpHeaders headers(final String acceptEncoding) {
+        final HttpHeaders headers = new HttpHeaders();
+        if (acceptEncoding != null) {
+            headers.add("Accept-Encoding", acceptEncoding);
+        }
+        return headers;
+    }
+
+    private static HttpRequest request(final String acceptEncoding) {
+        return new HttpRequest("GET", "/", "HTTP/1.1", headers(acceptEncoding), -1, null);
+    }
+
+    private static HttpResponse response(final String contentType) {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.add("Content-Type", contentType);
+        headers.add("Cache-Control", "max-age=60");
+        return new HttpResponse(200, "OK", headers, ByteBuffer.wrap(TEXT.getBytes()));
+    }
+
+    private static InputStream stream(final ByteBuffer buf) {
+        final byte[] bs = new byte[buf.remaining()];
+        buf.duplicate().get(bs);
+        return new ByteArrayInputStream(bs);
+    }
+
+    private static String inflate(final InputStream in) throws Exception {
+        try (InputStream i = in) {
+            return new String(i.readAllBytes());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package httpserver;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class RouterTest {
+
+    private final Router router = new Router()
+            .get("/", text("root"))
+            .get("/users", text("users"))
+            .get("/users/me", text("me"))
+            .get("/users/{id}", request -> text("user " + request.pathParameters.get("id"))
+                    .handle(request))
+            .get("/users/{id}/posts/{post}", request -> text(request.pathParameters.toString())
+                    .handle(request))
+            .post("/users", text("create"))
+            .post("/users/new", text("new"))
+            .get("/useful", text("useful"))
+            .get("/files/*", request -> text("file " + request.pathParameters.get("*"))
+                    .handle(request));
+
+    @Test
+    void staticRoutes() throws Exception {
+        assertThat(body("GET", "/")).isEqualTo("root");
+        assertThat(body("GET", "/users")).isEqualTo("users");
+        assertThat(body("GET", "/users?page=2")).isEqualTo("users");
+        assertThat(body("GET", "/users/me")).isEqualTo("me");
+        assertThat(body("GET", "/useful")).isEqualTo("useful");
+        assertThat(body("POST", "/users")).isEqualTo("create");
+    }
+
+    @Test
+    void parameters() throws Exception {
+        assertThat(body("GET", "/users/42")).isEqualTo("user 42");
+        assertThat(body("GET", "/users/mee")).isEqualTo("user mee");
+        assertThat(body("GET", "/users/42/posts/7?x=/y")).isEqualTo("{id=42, post=7}");
+        assertThat(body("GET", "/files/a/b.txt")).isEqualTo("file a/b.txt");
+        assertThat(body("GET", "/files/")).isEqualTo("file ");
+    }
+
+    @Test
+    void methodBacktracking() throws Exception {
+        // 固定のルートにGETがなければパラメーターのルートを試す
+        assertThat(body("GET", "/users/new")).isEqualTo("user new");
+        assertThat(body("POST", "/users/new")).isEqualTo("new");
+        final HttpResponse response = handle("PUT", "/users/new");
+        assertThat(response.statusCode).isEqualTo(405);
+        assertThat(response.headers.get("Allow")).isEqualTo("POST, GET");
+    }
+
+    @Test
+    void notMatched() throws Exception {
+        assertThat(handle("GET", "/user").statusCode).isEqualTo(404);
+        assertThat(handle("GET", "/users/").statusCode).isEqualTo(404);
+        assertThat(handle("GET", "/users/42/posts").statusCode).isEqualTo(404);
+        assertThat(handle("GET", "/files").statusCode).isEqualTo(404);
+        final HttpResponse response = handle("DELETE", "/users");
+        assertThat(response.statusCode).isEqualTo(405);
+        assertThat(response.headers.get("Allow")).isEqualTo("GET, POST");
+    }
+
+    @Test
+    void invalidPatterns() throws Exception {
+        assertThatThrownBy(() -> router.get("/users", text("")))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> router.get("/users/{name}/x", text("")))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> router.get("/a/*/b", text("")))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> router.get("users", text("")))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private String body(final String method, final String target) throws Exception {
+        final HttpResponse response = handle(method, target);
+        assertThat(response.statusCode).isEqualTo(200);
+        return StandardCharsets.UTF_8.decode(response.entity).toString();
+    }
+
+    private HttpResponse handle(final String method, final String target) throws Exception {
+        return router.handle(new HttpRequest(method, target, "HTTP/1.1", new HttpHeaders(), -1,
+                null));
+    }
+
+    private static HttpHandler text(final String s) {
+        return request -> new HttpResponse(200, "OK", new HttpHeaders(),
+                ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8)));
+    }
+}
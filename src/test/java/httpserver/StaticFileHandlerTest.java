@@ -0,0 +1,122 @@
+package httpserver;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class StaticFileHandlerTest {
+
+    private Path root;
+
+    @BeforeEach
+    void createRoot() throws Exception {
+        root = Files.createTempDirectory("static");
+    }
+
+    @AfterEach
+    void deleteRoot() throws Exception {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void get() throws Exception {
+        Files.write(root.resolve("hello.txt"), "Hello, world!".getBytes());
+        final HttpResponse response = handle("GET", "/hello.txt", new HttpHeaders());
+        assertThat(response.statusCode).isEqualTo(200);
+        assertThat(response.headers.get("Content-Type")).isEqualTo("text/plain; charset=UTF-8");
+        assertThat(response.body).isInstanceOf(FileBody.class);
+        assertThat(response.body.contentLength()).isEqualTo(13);
+        response.body.abort();
+    }
+
+    @Test
+    void range() throws Exception {
+        Files.write(root.resolve("hello.txt"), "Hello, world!".getBytes());
+        final HttpHeaders headers = new HttpHeaders();
+        headers.add("Range", "bytes=7-");
+        final HttpResponse response = handle("GET", "/hello.txt", headers);
+        assertThat(response.statusCode).isEqualTo(206);
+        assertThat(response.headers.get("Content-Range")).isEqualTo("bytes 7-12/13");
+        assertThat(response.body.contentLength()).isEqualTo(6);
+        response.body.abort();
+    }
+
+    @Test
+    void notModified() throws Exception {
+        Files.write(root.resolve("hello.txt"), "Hello, world!".getBytes());
+        final HttpResponse response = handle("GET", "/hello.txt", new HttpHeaders());
+        response.body.abort();
+        final HttpHeaders headers = new HttpHeaders();
+        headers.add("If-Modified-Since", response.headers.get("Last-Modified"));
+        final HttpResponse notModified = handle("GET", "/hello.txt", headers);
+        assertThat(notModified.statusCode).isEqualTo(304);
+        assertThat(notModified.body).isNull();
+    }
+
+    @Test
+    void lastModifiedIsImfFixdate() throws Exception {
+        final Path file = root.resolve("hello.txt");
+        Files.write(file, "Hello, world!".getBytes());
+        Files.setLastModifiedTime(file, FileTime.from(Instant.parse("2015-11-01T08:49:37Z")));
+        final HttpResponse response = handle("GET", "/hello.txt", new HttpHeaders());
+        response.body.abort();
+        // 日を2桁で表す
+        assertThat(response.headers.get("Last-Modified"))
+                .isEqualTo("Sun, 01 Nov 2015 08:49:37 GMT");
+    }
+
+    @Test
+    void precompressed() throws Exception {
+        Files.write(root.resolve("app.js"), "console.log('hello');".getBytes());
+        Files.write(root.resolve("app.js.gz"), new byte[] { 1, 2, 3 });
+        final HttpHeaders headers = new HttpHeaders();
+        headers.add("Accept-Encoding", "br, gzip;q=0.8");
+        final HttpResponse gzip = handle("GET", "/app.js", headers);
+        assertThat(gzip.headers.get("Content-Encoding")).isEqualTo("gzip");
+        assertThat(gzip.headers.get("Content-Type"))
+                .isEqualTo("application/javascript; charset=UTF-8");
+        assertThat(gzip.headers.get("Vary")).isEqualTo("Accept-Encoding");
+        assertThat(gzip.body.contentLength()).isEqualTo(3);
+        gzip.body.abort();
+
+        final HttpResponse identity = handle("GET", "/app.js", new HttpHeaders());
+        assertThat(identity.headers.get("Content-Encoding")).isNull();
+        assertThat(identity.headers.get("Vary")).isEqualTo("Accept-Encoding");
+        assertThat(identity.body.contentLength()).isEqualTo(21);
+        identity.body.abort();
+    }
+
+    @Test
+    void outsideOfRoot() throws Exception {
+        final HttpResponse response = handle("GET", "/../etc/passwd", new HttpHeaders());
+        assertThat(response.statusCode).isEqualTo(404);
+    }
+
+    @Test
+    void parseRange() throws Exception {
+        assertThat(StaticFileHandler.parseRange("bytes=0-4", 10)).containsExactly(0, 4);
+        assertThat(StaticFileHandler.parseRange("bytes=5-", 10)).containsExactly(5, 9);
+        assertThat(StaticFileHandler.parseRange("bytes=-3", 10)).containsExactly(7, 9);
+        assertThat(StaticFileHandler.parseRange("bytes=8-20", 10)).containsExactly(8, 9);
+        assertThat(StaticFileHandler.parseRange("bytes=10-", 10)).isNull();
+        assertThat(StaticFileHandler.parseRange("bytes=0-1,3-4", 10)).isEmpty();
+    }
+
+    private HttpResponse handle(final String method, final String requestTarget,
+            final HttpHeaders headers) throws Exception {
+        final HttpRequest request = new HttpRequest(method, requestTarget, "HTTP/1.1", headers,
+                -1, null);
+        return new StaticFileHandler(root).handle(request);
+    }
+}
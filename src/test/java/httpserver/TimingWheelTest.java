@@ -0,0 +1,66 @@
+package httpserver;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+
+    @Test
+    void advance() throws Exception {
+        final List<String> fired = new ArrayList<>();
+        final TimingWheel wheel = new TimingWheel(10, 8, 0);
+        wheel.schedule(() -> fired.add("a"), 25);
+        wheel.schedule(() -> fired.add("b"), 100);
+        wheel.schedule(() -> fired.add("c"), 1000);
+
+        wheel.advance(20);
+        assertThat(fired).isEmpty();
+        wheel.advance(30);
+        assertThat(fired).containsExactly("a");
+        wheel.advance(100);
+        assertThat(fired).containsExactly("a", "b");
+        wheel.advance(990);
+        assertThat(fired).containsExactly("a", "b");
+        wheel.advance(1000);
+        assertThat(fired).containsExactly("a", "b", "c");
+        assertThat(wheel.isEmpty()).isTrue();
+    }
+
+    @Test
+    void cancelAndReschedule() throws Exception {
+        final List<String> fired = new ArrayList<>();
+        final TimingWheel wheel = new TimingWheel(10, 8, 0);
+        final TimingWheel.Timeout a = wheel.schedule(() -> fired.add("a"), 10);
+        final TimingWheel.Timeout b = wheel.schedule(() -> fired.add("b"), 10);
+        wheel.cancel(a);
+        wheel.schedule(b, 50);
+
+        wheel.advance(40);
+        assertThat(fired).isEmpty();
+        wheel.advance(50);
+        assertThat(fired).containsExactly("b");
+        assertThat(wheel.isEmpty()).isTrue();
+    }
+
+    @Test
+    void cancelFromExpiredTask() throws Exception {
+        final List<String> fired = new ArrayList<>();
+        final TimingWheel wheel = new TimingWheel(10, 8, 0);
+        final TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[2];
+        timeouts[0] = wheel.schedule(() -> {
+            fired.add("a");
+            wheel.cancel(timeouts[1]);
+        }, 10);
+        timeouts[1] = wheel.schedule(() -> {
+            fired.add("b");
+            wheel.cancel(timeouts[0]);
+        }, 10);
+
+        wheel.advance(10);
+        assertThat(fired).hasSize(1);
+    }
+}